@@ -0,0 +1,291 @@
+package lucbui.rayscode.bot;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The code each user has stored, by user ID, to run later.
+ *
+ * Each user can only store so much code, and the store as a whole only holds so much. Once it's full, the code used
+ * least recently is evicted to make room, and code which hasn't been used for long enough is evicted anyway. Sizes
+ * are counted in bytes, as UTF-8.
+ *
+ * The store can be given a directory to spill code to, so it doesn't all have to be kept in memory. Once the code in
+ * memory goes over its limit, the code used least recently is written out to a file, and read back from it when it's
+ * needed. Without a directory, everything is kept in memory, and the store's limit is the memory limit.
+ *
+ * This is safe to use from any number of threads.
+ */
+public class CodeStore {
+
+    private final long maxBytesPerUser;
+    private final long maxHeapBytes;
+    private final long maxBytes;
+    private final long idleTimeout;
+    private final Path spillDirectory;
+    //Ordered by access, so the code used least recently comes first.
+    private final LinkedHashMap<Long, Stored> stored = new LinkedHashMap<>(16, 0.75f, true);
+    private long heapBytes;
+    private long diskBytes;
+    private long evictions;
+    private long spills;
+
+    private static final class Stored {
+        //Null while the code is spilled to disk.
+        private StringBuilder code;
+        private long bytes;
+        //When it was last used, going by System.nanoTime().
+        private long lastUsed;
+    }
+
+    /**
+     * Create a store which keeps everything in memory.
+     * @param maxBytesPerUser The most code each user can store.
+     * @param maxBytes The most code the store can hold, across every user.
+     * @param idleTimeout How long code is kept after it's last used.
+     * @param unit The unit of the idle timeout.
+     */
+    public CodeStore(long maxBytesPerUser, long maxBytes, long idleTimeout, TimeUnit unit){
+        this(maxBytesPerUser, maxBytes, maxBytes, idleTimeout, unit, null);
+    }
+
+    /**
+     * Create a store.
+     * @param maxBytesPerUser The most code each user can store.
+     * @param maxHeapBytes The most code kept in memory, across every user, before some is spilled to disk.
+     * @param maxBytes The most code the store can hold, across every user, in memory and on disk.
+     * @param idleTimeout How long code is kept after it's last used.
+     * @param unit The unit of the idle timeout.
+     * @param spillDirectory The directory code is spilled to, or null to keep everything in memory. The files in it
+     *                       are named after the users, so no two stores should share one.
+     */
+    public CodeStore(long maxBytesPerUser, long maxHeapBytes, long maxBytes, long idleTimeout, TimeUnit unit, Path spillDirectory){
+        if(maxBytesPerUser <= 0 || maxHeapBytes <= 0 || maxBytes <= 0 || idleTimeout <= 0){
+            throw new IllegalArgumentException("Store limits and idle timeout must be positive");
+        }
+        if(maxBytesPerUser > maxBytes){
+            throw new IllegalArgumentException("Each user can't store more than the whole store can hold");
+        }
+        if(spillDirectory == null && maxHeapBytes < maxBytes){
+            throw new IllegalArgumentException("A store which can't spill to disk can only hold what fits in memory");
+        }
+        this.maxBytesPerUser = maxBytesPerUser;
+        this.maxHeapBytes = maxHeapBytes;
+        this.maxBytes = maxBytes;
+        this.idleTimeout = unit.toNanos(idleTimeout);
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Add code to the end of what a user has stored.
+     * @param userId The ID of the user.
+     * @param code The code to add.
+     * @return True if the code was added, or false if it would take the user over their limit.
+     * @throws IOException If the user's code was spilled to disk, and can't be read back.
+     */
+    public synchronized boolean append(long userId, String code) throws IOException {
+        long now = System.nanoTime();
+        removeIdle(now);
+        long bytes = code.getBytes(StandardCharsets.UTF_8).length;
+        Stored user = stored.get(userId);
+        if(user == null){
+            user = new Stored();
+            user.code = new StringBuilder();
+            stored.put(userId, user);
+        }
+        user.lastUsed = now;
+        long total = user.bytes + bytes;
+        if(total > maxBytesPerUser){
+            if(user.bytes == 0){
+                stored.remove(userId);
+            }
+            return false;
+        }
+        if(user.code == null){
+            unspill(userId, user);
+        }
+        user.code.append(code);
+        user.bytes = total;
+        heapBytes += bytes;
+        makeRoom(userId);
+        return true;
+    }
+
+    /**
+     * Get the code a user has stored.
+     * @param userId The ID of the user.
+     * @return The code, or null if they have none stored.
+     * @throws IOException If the code was spilled to disk, and can't be read back.
+     */
+    public synchronized String get(long userId) throws IOException {
+        long now = System.nanoTime();
+        removeIdle(now);
+        Stored user = stored.get(userId);
+        if(user == null){
+            return null;
+        }
+        user.lastUsed = now;
+        //Code on disk stays there, since it's only being read.
+        return user.code == null ? new String(Files.readAllBytes(file(userId)), StandardCharsets.UTF_8) : user.code.toString();
+    }
+
+    /**
+     * Delete the code a user has stored.
+     * @param userId The ID of the user.
+     * @return True if they had any stored.
+     */
+    public synchronized boolean remove(long userId){
+        removeIdle(System.nanoTime());
+        Stored user = stored.remove(userId);
+        if(user == null){
+            return false;
+        }
+        forget(userId, user);
+        return true;
+    }
+
+    /**
+     * Evict the code of every user who hasn't used it for longer than the idle timeout.
+     * This happens whenever the store is used anyway, so this only needs calling to free it up sooner.
+     */
+    public synchronized void removeIdle(){
+        removeIdle(System.nanoTime());
+    }
+
+    //Code is ordered by when it was used, so the idle code is all at the front.
+    private void removeIdle(long now){
+        Iterator<Map.Entry<Long, Stored>> eldest = stored.entrySet().iterator();
+        while(eldest.hasNext()){
+            Map.Entry<Long, Stored> next = eldest.next();
+            if(now - next.getValue().lastUsed < idleTimeout){
+                break;
+            }
+            eldest.remove();
+            forget(next.getKey(), next.getValue());
+            evictions++;
+        }
+    }
+
+    //Evict code, and then spill it, until the store is within its limits. The code just used is never evicted or
+    //spilled, since it's the most recently used.
+    private void makeRoom(long justUsed){
+        Iterator<Map.Entry<Long, Stored>> eldest = stored.entrySet().iterator();
+        while(heapBytes + diskBytes > maxBytes){
+            Map.Entry<Long, Stored> next = eldest.next();
+            eldest.remove();
+            forget(next.getKey(), next.getValue());
+            evictions++;
+        }
+        while(heapBytes > maxHeapBytes && eldest.hasNext()){
+            Map.Entry<Long, Stored> next = eldest.next();
+            if(next.getKey() != justUsed && next.getValue().code != null && !spill(next.getKey(), next.getValue())){
+                //If it can't be written out, the rest probably can't either, so it's all kept in memory for now.
+                return;
+            }
+        }
+    }
+
+    //Write a user's code out to disk, and drop it from memory.
+    private boolean spill(long userId, Stored user){
+        try {
+            Files.createDirectories(spillDirectory);
+            Files.write(file(userId), user.code.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex){
+            ex.printStackTrace();
+            return false;
+        }
+        user.code = null;
+        heapBytes -= user.bytes;
+        diskBytes += user.bytes;
+        spills++;
+        return true;
+    }
+
+    //Read a user's code back into memory.
+    private void unspill(long userId, Stored user) throws IOException {
+        Path file = file(userId);
+        user.code = new StringBuilder(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        Files.deleteIfExists(file);
+        diskBytes -= user.bytes;
+        heapBytes += user.bytes;
+    }
+
+    //Let go of a user's code, wherever it is.
+    private void forget(long userId, Stored user){
+        if(user.code != null){
+            heapBytes -= user.bytes;
+            return;
+        }
+        diskBytes -= user.bytes;
+        try {
+            Files.deleteIfExists(file(userId));
+        } catch (IOException ex){
+            ex.printStackTrace();
+        }
+    }
+
+    private Path file(long userId){
+        return spillDirectory.resolve(userId + ".rays");
+    }
+
+    /**
+     * Get the most code each user can store.
+     * @return The number of bytes.
+     */
+    public long getMaxBytesPerUser(){
+        return maxBytesPerUser;
+    }
+
+    /**
+     * Get the number of users with code stored.
+     * @return The number of users.
+     */
+    public synchronized int size(){
+        return stored.size();
+    }
+
+    /**
+     * Get the amount of code kept in memory, across every user.
+     * @return The number of bytes.
+     */
+    public synchronized long getHeapBytes(){
+        return heapBytes;
+    }
+
+    /**
+     * Get the amount of code spilled to disk, across every user.
+     * @return The number of bytes.
+     */
+    public synchronized long getDiskBytes(){
+        return diskBytes;
+    }
+
+    /**
+     * Get the number of users whose code was evicted, because it was idle or to make room.
+     * @return The number of evictions.
+     */
+    public synchronized long getEvictions(){
+        return evictions;
+    }
+
+    /**
+     * Get the number of times code has been spilled to disk.
+     * @return The number of spills.
+     */
+    public synchronized long getSpills(){
+        return spills;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "CodeStore{users=" + stored.size() + ", heapBytes=" + heapBytes + "/" + maxHeapBytes +
+                ", bytes=" + (heapBytes + diskBytes) + "/" + maxBytes + ", evictions=" + evictions +
+                ", spills=" + spills + "}";
+    }
+}
@@ -0,0 +1,165 @@
+package lucbui.rayscode.bot;
+
+import lucbui.rayscode.evaluator.EvaluationResult;
+import lucbui.rayscode.evaluator.EvaluatorScheduler;
+import lucbui.rayscode.evaluator.RayscodeEvaluator;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * The workers evaluations run on, so a long evaluation doesn't hold up JDA's event thread, and everyone else's
+ * commands with it.
+ *
+ * Evaluations are run by an EvaluatorScheduler, a slice at a time, on a fixed number of workers, which are shared
+ * fairly between users. If too many evaluations are already in flight, new ones are turned away rather than piling
+ * up. Each user can only have so many evaluations in flight at once, too.
+ */
+public class EvaluationPool {
+
+    /**
+     * What happened to a submitted evaluation.
+     */
+    public enum Submission {
+        /**
+         * The evaluation is running, or waiting for a worker.
+         */
+        ACCEPTED,
+        /**
+         * The user already has as many evaluations as they're allowed.
+         */
+        TOO_MANY_FOR_USER,
+        /**
+         * Too many evaluations are in flight.
+         */
+        BUSY
+    }
+
+    private final EvaluatorScheduler scheduler;
+    private final int maxInFlight;
+    private final int perUserLimit;
+    //The evaluations each user has in flight, by user ID. Users with none aren't in the map.
+    private final Map<Long, Integer> submitted = new ConcurrentHashMap<>();
+    //The evaluations in flight, counting those which have been let in, but not handed to the scheduler yet.
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Create a pool of daemon worker threads.
+     * @param workers The number of evaluations which can run at once.
+     * @param maxInFlight The number of evaluations which can be running or waiting at once.
+     * @param perUserLimit The number of evaluations each user can have running or waiting at once.
+     * @param quantum The most instructions an evaluation runs before another gets a turn.
+     */
+    public EvaluationPool(int workers, int maxInFlight, int perUserLimit, long quantum){
+        this(new EvaluatorScheduler(workers, quantum), maxInFlight, perUserLimit);
+    }
+
+    /**
+     * Create a pool.
+     * @param workers The number of evaluations which can run at once.
+     * @param maxInFlight The number of evaluations which can be running or waiting at once.
+     * @param perUserLimit The number of evaluations each user can have running or waiting at once.
+     * @param quantum The most instructions an evaluation runs before another gets a turn.
+     * @param threadFactory Makes the worker threads, such as virtual threads, on a JVM which has them.
+     */
+    public EvaluationPool(int workers, int maxInFlight, int perUserLimit, long quantum, ThreadFactory threadFactory){
+        this(new EvaluatorScheduler(workers, quantum, threadFactory), maxInFlight, perUserLimit);
+    }
+
+    private EvaluationPool(EvaluatorScheduler scheduler, int maxInFlight, int perUserLimit){
+        if(maxInFlight <= 0 || perUserLimit <= 0){
+            throw new IllegalArgumentException("Evaluations in flight and per-user limit must be positive");
+        }
+        this.scheduler = scheduler;
+        this.maxInFlight = maxInFlight;
+        this.perUserLimit = perUserLimit;
+    }
+
+    /**
+     * Evaluate an evaluator on the workers, if there's room for it.
+     * @param userId The ID of the user the evaluation is for.
+     * @param evaluator The evaluator.
+     * @param whenDone Called on a worker once the evaluator finishes or pauses, with its result, or with the exception
+     *                 it failed with.
+     * @return Whether the evaluation was accepted, and why not if it wasn't.
+     */
+    public Submission submit(long userId, RayscodeEvaluator evaluator, BiConsumer<EvaluationResult, Throwable> whenDone){
+        if(!reserve(userId)){
+            return Submission.TOO_MANY_FOR_USER;
+        }
+        if(!reserveInFlight()){
+            release(userId);
+            return Submission.BUSY;
+        }
+        try {
+            scheduler.submit(userId, 1, evaluator).whenComplete((result, ex) -> {
+                inFlight.decrementAndGet();
+                release(userId);
+                whenDone.accept(result, ex);
+            });
+        } catch (RuntimeException ex){
+            //The scheduler has been shut down.
+            inFlight.decrementAndGet();
+            release(userId);
+            throw ex;
+        }
+        return Submission.ACCEPTED;
+    }
+
+    //Count one more evaluation in flight, unless there are already as many as there can be. This has to be one step,
+    //or any number of threads could all see there's room for one more at once.
+    private boolean reserveInFlight(){
+        int current;
+        do {
+            current = inFlight.get();
+            if(current >= maxInFlight){
+                return false;
+            }
+        } while(!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    //Count one more evaluation for a user, unless they're at the limit.
+    private boolean reserve(long userId){
+        boolean[] reserved = {false};
+        submitted.compute(userId, (id, count) -> {
+            int current = count == null ? 0 : count;
+            if(current >= perUserLimit){
+                return count;
+            }
+            reserved[0] = true;
+            return current + 1;
+        });
+        return reserved[0];
+    }
+
+    private void release(long userId){
+        submitted.computeIfPresent(userId, (id, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Get the number of evaluations each user can have running or waiting at once.
+     * @return The per-user limit.
+     */
+    public int getPerUserLimit(){
+        return perUserLimit;
+    }
+
+    /**
+     * Get the number of evaluations running, or waiting for their turn.
+     * @return The number of evaluations in flight.
+     */
+    public int getInFlight(){
+        return inFlight.get();
+    }
+
+    /**
+     * Stop taking evaluations. Those already submitted still run.
+     */
+    public void shutdown(){
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,166 @@
+package lucbui.rayscode.bot;
+
+import lucbui.rayscode.evaluator.RayscodeEvaluator;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The evaluators waiting for input, by the channel they were run in and the user who ran them, so the next message
+ * that user sends in that channel can be handed straight to the right one.
+ *
+ * A user can only have one evaluator waiting in each channel. If another pauses there, it takes the place of the
+ * first, which is cancelled. Evaluators don't wait forever: once one has waited longer than the time to live, or too
+ * many are waiting and it has waited the longest, it's cancelled and forgotten, so code nobody answers doesn't keep
+ * its stack and variables around for good.
+ *
+ * This is safe to use from any number of threads, since evaluators pause on the workers, and are resumed from JDA's
+ * event thread.
+ */
+public class PausedEvaluators {
+
+    private final int capacity;
+    private final long timeToLive;
+    //Ordered by when each evaluator paused, so the one which has waited longest comes first.
+    private final LinkedHashMap<Key, Waiting> waiting = new LinkedHashMap<>();
+    private long expired;
+    private long evicted;
+
+    private static final class Key {
+        private final long channelId;
+        private final long userId;
+
+        private Key(long channelId, long userId){
+            this.channelId = channelId;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof Key)){
+                return false;
+            }
+            Key key = (Key) o;
+            return channelId == key.channelId && userId == key.userId;
+        }
+
+        @Override
+        public int hashCode(){
+            return 31 * Long.hashCode(channelId) + Long.hashCode(userId);
+        }
+    }
+
+    private static final class Waiting {
+        private final RayscodeEvaluator evaluator;
+        //When it expires, going by System.nanoTime().
+        private final long expiry;
+
+        private Waiting(RayscodeEvaluator evaluator, long expiry){
+            this.evaluator = evaluator;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * Create a registry.
+     * @param capacity The most evaluators which can wait at once.
+     * @param timeToLive How long an evaluator can wait for input.
+     * @param unit The unit of the time to live.
+     */
+    public PausedEvaluators(int capacity, long timeToLive, TimeUnit unit){
+        if(capacity <= 0 || timeToLive <= 0){
+            throw new IllegalArgumentException("Capacity and time to live must be positive");
+        }
+        this.capacity = capacity;
+        this.timeToLive = unit.toNanos(timeToLive);
+    }
+
+    /**
+     * Wait for input for an evaluator.
+     * @param channelId The ID of the channel the evaluator was run in.
+     * @param userId The ID of the user who ran it.
+     * @param evaluator The evaluator, which must be paused.
+     */
+    public synchronized void put(long channelId, long userId, RayscodeEvaluator evaluator){
+        long now = System.nanoTime();
+        removeExpired(now);
+        Key key = new Key(channelId, userId);
+        //Removed first, so a replacement goes to the back of the line.
+        Waiting old = waiting.remove(key);
+        if(old != null){
+            old.evaluator.cancel();
+        }
+        waiting.put(key, new Waiting(evaluator, now + timeToLive));
+        Iterator<Waiting> eldest = waiting.values().iterator();
+        while(waiting.size() > capacity){
+            eldest.next().evaluator.cancel();
+            eldest.remove();
+            evicted++;
+        }
+    }
+
+    /**
+     * Stop waiting for input for an evaluator, so it can be given some.
+     * @param channelId The ID of the channel the message with the input was sent in.
+     * @param userId The ID of the user who sent it.
+     * @return The evaluator the user has waiting in the channel, or null if there isn't one.
+     */
+    public synchronized RayscodeEvaluator remove(long channelId, long userId){
+        removeExpired(System.nanoTime());
+        Waiting removed = waiting.remove(new Key(channelId, userId));
+        return removed == null ? null : removed.evaluator;
+    }
+
+    /**
+     * Cancel and forget every evaluator which has waited longer than the time to live.
+     * This happens whenever the registry is used anyway, so this only needs calling to free them up sooner.
+     */
+    public synchronized void removeExpired(){
+        removeExpired(System.nanoTime());
+    }
+
+    //Every evaluator waits just as long, so the ones which have expired are all at the front.
+    private void removeExpired(long now){
+        Iterator<Waiting> eldest = waiting.values().iterator();
+        while(eldest.hasNext()){
+            Waiting next = eldest.next();
+            if(next.expiry - now > 0){
+                break;
+            }
+            next.evaluator.cancel();
+            eldest.remove();
+            expired++;
+        }
+    }
+
+    /**
+     * Get the number of evaluators waiting for input.
+     * @return The number of evaluators.
+     */
+    public synchronized int size(){
+        return waiting.size();
+    }
+
+    /**
+     * Get the number of evaluators forgotten because they waited longer than the time to live.
+     * @return The number of evaluators.
+     */
+    public synchronized long getExpired(){
+        return expired;
+    }
+
+    /**
+     * Get the number of evaluators forgotten to make room for others.
+     * @return The number of evaluators.
+     */
+    public synchronized long getEvicted(){
+        return evicted;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "PausedEvaluators{waiting=" + waiting.size() + "/" + capacity + ", expired=" + expired +
+                ", evicted=" + evicted + "}";
+    }
+}
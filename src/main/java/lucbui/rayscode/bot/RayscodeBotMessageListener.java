@@ -1,5 +1,9 @@
 package lucbui.rayscode.bot;
 
+import lucbui.rayscode.compiler.ProgramCache;
+import lucbui.rayscode.compiler.RayscodeProgram;
+import lucbui.rayscode.evaluator.EvaluationResult;
+import lucbui.rayscode.evaluator.EvaluatorConfig;
 import lucbui.rayscode.evaluator.RayscodeEvaluator;
 import lucbui.rayscode.lexer.RayscodeLexer;
 import lucbui.rayscode.token.Rayscode;
@@ -10,8 +14,9 @@ import net.dv8tion.jda.core.hooks.ListenerAdapter;
 
 import java.io.IOException;
 import java.io.StringReader;
-import java.math.BigInteger;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 
 /**
@@ -19,13 +24,38 @@ import java.util.function.BiConsumer;
  */
 public class RayscodeBotMessageListener extends ListenerAdapter {
 
-    //A code cache, for each user.
-    private static Map<User, StringBuilder> cacheToStore = new HashMap<>();
-    //Paused listeners. We use a queue, so if multiple code is waiting for input, we unpause them in
-    //request order.
-    private static Queue<RayscodeEvaluator> pausedEvaluators = new LinkedList<>();
+    //A code cache, for each user. Sized by system properties, if they're set. Code only spills to disk if a directory
+    //is given for it.
+    private static final CodeStore STORE = createStore();
+    //Paused evaluators, by the channel and user they're waiting for input from. Sized by system properties, if
+    //they're set.
+    private static final PausedEvaluators PAUSED = new PausedEvaluators(
+            Integer.getInteger("rayscode.maxPaused", 1000),
+            Long.getLong("rayscode.inputTimeout", 10 * 60), TimeUnit.SECONDS);
 
     public static final String PREFIX = "!";
+    //The limits every evaluation runs under.
+    private static final EvaluatorConfig CONFIG = EvaluatorConfig.DEFAULT;
+    //Compiled programs, so code that's run over and over is only compiled once.
+    private static final ProgramCache PROGRAMS = new ProgramCache(50_000);
+    //Evaluations run on these workers, instead of JDA's event thread, taking turns a slice of instructions at a time.
+    //Sized by system properties, if they're set.
+    private static final EvaluationPool WORKERS = new EvaluationPool(
+            Integer.getInteger("rayscode.workers", Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger("rayscode.maxInFlight", 256),
+            Integer.getInteger("rayscode.perUserLimit", 2),
+            Long.getLong("rayscode.quantum", 10_000));
+
+    private static CodeStore createStore(){
+        String spillDirectory = System.getProperty("rayscode.storeSpillDirectory");
+        long maxBytes = Long.getLong("rayscode.storeBytes", 16 * 1024 * 1024);
+        return new CodeStore(
+                Long.getLong("rayscode.storeBytesPerUser", 64 * 1024),
+                spillDirectory == null ? maxBytes : Long.getLong("rayscode.storeHeapBytes", 4 * 1024 * 1024),
+                maxBytes,
+                Long.getLong("rayscode.storeIdleDays", 30), TimeUnit.DAYS,
+                spillDirectory == null ? null : Paths.get(spillDirectory));
+    }
 
     private enum Command {
         EVAL("eval", (evt, msg) -> evaluateCacheCode(evt, msg, false), (evt, msg) -> evaluateMessageCode(evt, msg, false),
@@ -85,26 +115,33 @@ public class RayscodeBotMessageListener extends ListenerAdapter {
             for (Command command : Command.values()) {
                 if (command.getCommands().stream().anyMatch(i -> rawMessage.equals(PREFIX + i))) {
                     command.getNoAfter().accept(event, message);
-                    break;
+                    return;
                 } else if (command.getCommands().stream().anyMatch(i -> rawMessage.startsWith(PREFIX + i))) {
                     command.getAfter().accept(event, message);
-                    break;
+                    return;
                 }
             }
-        } else if(!Objects.equals(message.getAuthor(), me) && !pausedEvaluators.isEmpty()){
-            //If an evaluator is paused (waiting for input), we resume it now with the input message.
-            RayscodeEvaluator eval = pausedEvaluators.remove();
-            eval.setInputString(rawMessage);
-            eval.setPaused(false);
-            evaluate(eval, channel);
+            //If the author has an evaluator paused (waiting for input) in this channel, we resume it now with the input
+            //message. Commands always come first, so code waiting for input can't get stuck.
+            RayscodeEvaluator eval = PAUSED.remove(channel.getIdLong(), message.getAuthor().getIdLong());
+            if(eval != null){
+                eval.setInputString(rawMessage);
+                eval.setPaused(false);
+                submit(eval, message.getAuthor(), channel);
+            }
         } else if(rawMessage.startsWith(PREFIX)){
             //They're trying to use an unknown command
             channel.sendMessage("I don't recognize that command").queue();
         }
     }
 
-    //"Compiles" a code string to some actual code.
-    private static List<RayscodeFunctionMetadata> compile(String codeString) throws IOException{
+    //Compiles a code string to a program, which can be run by any number of evaluators.
+    private static RayscodeProgram compile(String codeString) throws IOException{
+        return PROGRAMS.get(codeString, RayscodeBotMessageListener::lex);
+    }
+
+    //Lexes a code string into its tokens.
+    private static List<RayscodeFunctionMetadata> lex(String codeString) throws IOException{
         RayscodeLexer lexer = new RayscodeLexer(new StringReader(codeString));
         List<RayscodeFunctionMetadata> functionCode = new ArrayList<>();
         RayscodeFunctionMetadata code;
@@ -115,43 +152,48 @@ public class RayscodeBotMessageListener extends ListenerAdapter {
         return functionCode;
     }
 
-    //Evaluate some code, and posts the final results.
-    private static void evaluate(RayscodeEvaluator eval, MessageChannel channel){
-        Deque<BigInteger> endStack = eval.evaluate();
-        if(eval.isPaused()){
+    //Post the final results of an evaluation.
+    private static void report(RayscodeEvaluator eval, EvaluationResult result, User author, MessageChannel channel){
+        if(result.isPaused()){
             //Evaluator is waiting for input.
-            pausedEvaluators.add(eval);
+            PAUSED.put(channel.getIdLong(), author.getIdLong(), eval);
             channel.sendMessage("Waiting for input...").queue();
         } else {
             //Print stack if no output string is specified, otherwise print the output string.
-            if(eval.getOutputString() == null || eval.getOutputString().isEmpty()) {
-                channel.sendMessage("End Result: ```" + endStack.toString() + "```").queue();
-            } else if("Hello World".equalsIgnoreCase(eval.getOutputString())){
-                channel.sendMessage("End Result: " + eval.getOutputString() + ". Nice Hello World! You managed it in " + eval.getLength() + " opcodes.").queue();
+            if(result.getOutput().isEmpty()) {
+                channel.sendMessage("End Result: ```" + result + "```").queue();
+            } else if("Hello World".equalsIgnoreCase(result.getOutput())){
+                channel.sendMessage("End Result: " + result.getOutput() + ". Nice Hello World! You managed it in " + eval.getLength() + " opcodes.").queue();
             } else {
-                channel.sendMessage("End Result: " + eval.getOutputString()).queue();
+                channel.sendMessage("End Result: " + result.getOutput()).queue();
             }
         }
     }
 
+    //Post whatever went wrong with some code to the channel, since there's no one else to tell.
+    private static void reportError(Throwable ex, MessageChannel channel){
+        if(ex instanceof IOException){
+            channel.sendMessage("Whoops I ran into an error. I've written it in the console.").queue();
+            ex.printStackTrace();
+        } else if(ex instanceof IllegalArgumentException || ex instanceof IllegalStateException){
+            channel.sendMessage("Error encountered during parsing: " + ex.getLocalizedMessage() + ".").queue();
+        } else {
+            channel.sendMessage("Error encountered during parsing: " + ex.getLocalizedMessage() + ". I've written more info in the console.").queue();
+            ex.printStackTrace();
+        }
+    }
+
     private static void evaluateCacheCode(MessageReceivedEvent event, Message message, boolean debug) {
         MessageChannel channel = event.getChannel();
-        if(cacheToStore.containsKey(message.getAuthor())){
-            String codeString = cacheToStore.get(message.getAuthor()).toString();
-            try {
-                RayscodeEvaluator eval = new RayscodeEvaluator(compile(codeString));
-                eval.setDebug(debug);
-                eval.setOutputMethod(str -> message.getAuthor().openPrivateChannel().complete().sendMessage(str).queue());
-                evaluate(eval, channel);
-            } catch (IOException ex){
-                channel.sendMessage("Whoops I ran into an error. I've written it in the console.").queue();
-                ex.printStackTrace();
-            } catch (IllegalArgumentException | IllegalStateException ex){
-                channel.sendMessage("Error encountered during parsing: " + ex.getLocalizedMessage() + ".").queue();
-            } catch (Throwable ex){
-                channel.sendMessage("Error encountered during parsing: " + ex.getLocalizedMessage() + ". I've written more info in the console.").queue();
-                ex.printStackTrace();
-            }
+        String codeString;
+        try {
+            codeString = STORE.get(message.getAuthor().getIdLong());
+        } catch (IOException ex){
+            reportError(ex, channel);
+            return;
+        }
+        if(codeString != null){
+            evaluateCode(codeString, message.getAuthor(), channel, debug);
         } else {
             channel.sendMessage("You have no code stored.").queue();
         }
@@ -160,31 +202,67 @@ public class RayscodeBotMessageListener extends ListenerAdapter {
     private static void evaluateMessageCode(MessageReceivedEvent event, Message message, boolean debug) {
         MessageChannel channel = event.getChannel();
         String codeString = message.getContentDisplay();
-        String[] split = codeString.split("\\s+", 2);
-        codeString = split[1];
         try {
-            RayscodeEvaluator eval = new RayscodeEvaluator(compile(codeString));
-            eval.setDebug(debug);
-            eval.setOutputMethod(str -> message.getAuthor().openPrivateChannel().complete().sendMessage(str).queue());
-            evaluate(eval, channel);
-        } catch (IOException ex){
-            channel.sendMessage("Whoops I ran into an error. I've written it in the console.").queue();
-            ex.printStackTrace();
-        } catch (IllegalArgumentException | IllegalStateException ex){
-            channel.sendMessage("Error encountered during parsing: " + ex.getLocalizedMessage() + ".").queue();
+            String[] split = codeString.split("\\s+", 2);
+            evaluateCode(split[1], message.getAuthor(), channel, debug);
         } catch (Throwable ex){
-            channel.sendMessage("Error encountered during parsing: " + ex.getLocalizedMessage() + ". I've written more info in the console.").queue();
-            ex.printStackTrace();
+            reportError(ex, channel);
+        }
+    }
+
+    //Compile some code, and hand it to the workers to evaluate. Compiling is quick, and usually cached, so it's done
+    //here, and only the evaluation waits for a worker.
+    private static void evaluateCode(String codeString, User author, MessageChannel channel, boolean debug) {
+        RayscodeEvaluator eval;
+        try {
+            eval = new RayscodeEvaluator(compile(codeString), CONFIG);
+        } catch (Throwable ex){
+            reportError(ex, channel);
+            return;
+        }
+        eval.setDebug(debug);
+        if(!debug){
+            submit(eval, author, channel);
+            return;
+        }
+        //The debug log goes to the user's DMs. The channel is opened before the evaluation starts, so the workers never
+        //wait on Discord, and the evaluation isn't started at all if it can't be opened.
+        author.openPrivateChannel().queue(dmChannel -> {
+            eval.setOutputMethod(str -> dmChannel.sendMessage(str).queue());
+            submit(eval, author, channel);
+        }, ex -> reportError(ex, channel));
+    }
+
+    //Hand an evaluation to the workers, and post its results once it's done. If the workers can't take it, the user is
+    //told to try again.
+    private static void submit(RayscodeEvaluator eval, User author, MessageChannel channel){
+        EvaluationPool.Submission submission = WORKERS.submit(author.getIdLong(), eval, (result, ex) -> {
+            if(ex == null){
+                report(eval, result, author, channel);
+            } else {
+                reportError(ex, channel);
+            }
+        });
+        if(submission == EvaluationPool.Submission.TOO_MANY_FOR_USER){
+            channel.sendMessage("You already have " + WORKERS.getPerUserLimit() + " evaluations running. Try again once one of them finishes.").queue();
+        } else if(submission == EvaluationPool.Submission.BUSY){
+            channel.sendMessage("I'm busy right now, try again in a bit.").queue();
         }
     }
 
     private static void sendStoreToUser(MessageReceivedEvent event, Message message) {
         MessageChannel channel = event.getChannel();
-        if(!cacheToStore.containsKey(message.getAuthor())){
+        String storedValue;
+        try {
+            storedValue = STORE.get(message.getAuthor().getIdLong());
+        } catch (IOException ex){
+            reportError(ex, channel);
+            return;
+        }
+        if(storedValue == null){
             channel.sendMessage("You have no code stored.").queue();
         } else {
             MessageChannel dmChannel = event.isFromType(ChannelType.PRIVATE) ? channel : message.getAuthor().openPrivateChannel().complete();
-            String storedValue = cacheToStore.get(message.getAuthor()).toString();
             for (int charIndex = 0; charIndex < storedValue.length(); charIndex += 2000){
                 int charEndIndex = Math.min(charIndex + 2000, storedValue.length() - charIndex);
                 dmChannel.sendMessage(storedValue.substring(charIndex, charEndIndex)).queue();
@@ -199,14 +277,20 @@ public class RayscodeBotMessageListener extends ListenerAdapter {
         MessageChannel channel = event.getChannel();
         String rawMessage = message.getContentDisplay().substring(6).trim();
         rawMessage = rawMessage.substring(6).trim();
-        cacheToStore.computeIfAbsent(message.getAuthor(), u -> new StringBuilder()).append(rawMessage).append(" ");
-        channel.sendMessage("I stored this code for later evaluation. You can add more to this code using the same command.").queue();
+        try {
+            if(STORE.append(message.getAuthor().getIdLong(), rawMessage + " ")){
+                channel.sendMessage("I stored this code for later evaluation. You can add more to this code using the same command.").queue();
+            } else {
+                channel.sendMessage("I can't store that, your cache can only hold " + STORE.getMaxBytesPerUser() + " bytes of code.").queue();
+            }
+        } catch (IOException ex){
+            reportError(ex, channel);
+        }
     }
 
     private static void cleanCache(MessageReceivedEvent event, Message message) {
         //Clean their store for re-use.
-        if(cacheToStore.containsKey(message.getAuthor())){
-            cacheToStore.remove(message.getAuthor());
+        if(STORE.remove(message.getAuthor().getIdLong())){
             event.getChannel().sendMessage("Alright, I deleted everything you had stored.").queue();
         } else {
             event.getChannel().sendMessage("You don't have anything stored.").queue();
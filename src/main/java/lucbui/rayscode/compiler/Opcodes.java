@@ -0,0 +1,99 @@
+package lucbui.rayscode.compiler;
+
+import lucbui.rayscode.token.Rayscode;
+import lucbui.rayscode.token.RayscodeFunction;
+
+/**
+ * The opcodes a RayscodeProgram is lowered to, so an evaluator can dispatch on an int instead of calling each
+ * instruction's function through the RayscodeFunction interface.
+ *
+ * There is one opcode for each Rayscode operator, plus EXECUTE for any other function, which can only be run by
+ * calling it. The operators themselves still decide what each opcode does.
+ *
+ * An instruction which could be overridden by a method is stored as the complement of its opcode (~opcode), so it is
+ * always negative, and the evaluator knows to check for a method first.
+ *
+ * The shortcut opcodes are never an instruction's own opcode. They describe what a Shortcut does instead.
+ */
+public final class Opcodes {
+
+    public static final int EXECUTE = 0;
+    public static final int TWO = 1;
+    public static final int THREE = 2;
+    public static final int SIZE = 3;
+    public static final int VARIABLE = 4;
+    public static final int ADD = 5;
+    public static final int SUBTRACT = 6;
+    public static final int MULTIPLY = 7;
+    public static final int DIVIDE = 8;
+    public static final int INPUT = 9;
+    public static final int OUTPUT = 10;
+    public static final int SWAP = 11;
+    public static final int POP = 12;
+    public static final int DUPLICATE = 13;
+    public static final int ROLL = 14;
+    public static final int ASSIGNMENT = 15;
+    public static final int IF = 16;
+    public static final int ELSE = 17;
+    public static final int ENDIF = 18;
+    public static final int METHOD = 19;
+    public static final int STARTLOOP = 20;
+    public static final int ENDLOOP = 21;
+    public static final int STARTFUNC = 22;
+    public static final int PARAM = 23;
+    public static final int ENDFUNC = 24;
+
+    //Shortcuts, which stand in for a sequence of builtin instructions. No instruction is ever lowered to one of these.
+    public static final int LITERALS = 25;
+    public static final int SKIP = 26;
+    public static final int SHIFT_LEFT = 27;
+    public static final int SHIFT_RIGHT = 28;
+    //Superinstructions, shortcuts which fuse a few instructions that often come together, so they take one dispatch.
+    public static final int LITERAL_OPERATION = 29;
+    public static final int OPERATION_LITERAL = 30;
+    public static final int DUPLICATE_IF = 31;
+    public static final int VARIABLE_ADD = 32;
+    public static final int ASSIGN_POP = 33;
+
+    private Opcodes(){
+        //Constants only.
+    }
+
+    /**
+     * Get the opcode of a function.
+     * @param function The function.
+     * @return The function's opcode, or EXECUTE if it isn't a Rayscode operator.
+     */
+    public static int of(RayscodeFunction function){
+        if(!(function instanceof Rayscode)){
+            return EXECUTE;
+        }
+        switch((Rayscode) function){
+            case TWO: return TWO;
+            case THREE: return THREE;
+            case SIZE: return SIZE;
+            case VARIABLE: return VARIABLE;
+            case ADD: return ADD;
+            case SUBTRACT: return SUBTRACT;
+            case MULTIPLY: return MULTIPLY;
+            case DIVIDE: return DIVIDE;
+            case INPUT: return INPUT;
+            case OUTPUT: return OUTPUT;
+            case SWAP: return SWAP;
+            case POP: return POP;
+            case DUPLICATE: return DUPLICATE;
+            case ROLL: return ROLL;
+            case ASSIGNMENT: return ASSIGNMENT;
+            case IF: return IF;
+            case ELSE: return ELSE;
+            case ENDIF: return ENDIF;
+            case METHOD: return METHOD;
+            case STARTLOOP: return STARTLOOP;
+            case ENDLOOP: return ENDLOOP;
+            case STARTFUNC: return STARTFUNC;
+            case PARAM: return PARAM;
+            case ENDFUNC: return ENDFUNC;
+            default: return EXECUTE;
+        }
+    }
+}
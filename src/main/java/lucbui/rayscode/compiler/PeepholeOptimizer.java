@@ -0,0 +1,215 @@
+package lucbui.rayscode.compiler;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds sequences of builtin instructions which can be run as a Shortcut.
+ *
+ * raysCode only has 2 and 3 as literals, so programs build every other constant out of arithmetic on them, and tend
+ * to be full of instructions which undo each other. These are found by looking at the opcodes alone:
+ *
+ * - Constant folding: a run of literals, arithmetic, and stack instructions which only ever use values pushed by the
+ * run itself always leaves the same values behind, so it's worked out now and pushed all at once (LITERALS).
+ * - No-op removal: raysShock raysShock and raysE raysD leave the stack as it was (SKIP).
+ * - Strength reduction: multiplying or dividing by a power of two, built by a run of constants, is a shift
+ * (SHIFT_LEFT, SHIFT_RIGHT).
+ * - Superinstructions: sequences which come up all the time are fused, so they only take one dispatch. A constant
+ * and the arithmetic which uses it (LITERAL_OPERATION, or OPERATION_LITERAL when it's swapped first), raysE raysShrug
+ * (DUPLICATE_IF), a variable and raysP (VARIABLE_ADD), and raysLove raysD (ASSIGN_POP). SuperinstructionMiner
+ * reports which sequences are common enough to be worth adding.
+ *
+ * Shortcuts never cross a control structure, and every jump lands on one, so nothing jumps into the middle of one.
+ */
+final class PeepholeOptimizer {
+
+    //Constants larger than this are left for the evaluator to build, so compiling stays quick, and programs which
+    //build huge numbers still run into the evaluator's limits.
+    private static final int MAX_LITERAL_BITS = 4096;
+
+    private PeepholeOptimizer(){
+        //Static methods only.
+    }
+
+    /**
+     * Find every shortcut in a program.
+     * @param opcodes The opcodes of the program, as lowered by RayscodeCompiler.
+     * @param operands The operands of the program, as lowered by RayscodeCompiler.
+     * @param variableSlots The variable slot of each instruction of the program, or -1 if it has none.
+     * @return The shortcut starting at each index, or null if there is none.
+     */
+    static Shortcut[] optimize(int[] opcodes, int[] operands, int[] variableSlots){
+        Shortcut[] shortcuts = new Shortcut[opcodes.length];
+        int idx = 0;
+        while(idx < opcodes.length){
+            Shortcut shortcut = fold(opcodes, idx);
+            if(shortcut == null){
+                shortcut = skip(opcodes, idx);
+            }
+            if(shortcut == null){
+                shortcut = fuse(opcodes, operands, variableSlots, idx);
+            }
+            shortcuts[idx] = shortcut;
+            idx = shortcut == null ? idx + 1 : shortcut.getEnd();
+        }
+        return shortcuts;
+    }
+
+    //Fold the longest run of constant instructions starting at an index, and any arithmetic using it after it.
+    private static Shortcut fold(int[] opcodes, int start){
+        List<BigInteger> values = new ArrayList<>();
+        int growth = 0;
+        int end = start;
+        while(end < opcodes.length && apply(opcode(opcodes, end), values)){
+            growth = Math.max(growth, values.size());
+            end++;
+        }
+        if(values.size() == 1 && end < opcodes.length){
+            Shortcut operation = operate(opcodes, end, values.get(0), growth);
+            if(operation != null){
+                return operation;
+            }
+        }
+        //A single literal is as quick to run as it is.
+        if(end - start < 2){
+            return null;
+        }
+        return new Shortcut(Opcodes.LITERALS, end, 0, growth, 0, values.toArray(new BigInteger[0]));
+    }
+
+    //Fuse a constant with the arithmetic after it, which uses it and one value from before.
+    //The arithmetic may come straight after, so the constant is the first value it pops, or after a swap, so it's the
+    //second. Dividing by zero is left to fail the usual way.
+    private static Shortcut operate(int[] opcodes, int end, BigInteger literal, int growth){
+        boolean swapped = opcode(opcodes, end) == Opcodes.SWAP && end + 1 < opcodes.length;
+        int operation = opcode(opcodes, swapped ? end + 1 : end);
+        int operationEnd = swapped ? end + 2 : end + 1;
+        if(!isArithmetic(operation)){
+            return null;
+        }
+        if(operation == Opcodes.MULTIPLY && isPowerOfTwo(literal)){
+            return new Shortcut(Opcodes.SHIFT_LEFT, operationEnd, 1, growth, literal.getLowestSetBit(), new BigInteger[0]);
+        }
+        if(swapped && operation == Opcodes.DIVIDE && isPowerOfTwo(literal)){
+            return new Shortcut(Opcodes.SHIFT_RIGHT, operationEnd, 1, growth, literal.getLowestSetBit(), new BigInteger[0]);
+        }
+        if(swapped && operation == Opcodes.DIVIDE && literal.signum() == 0){
+            return null;
+        }
+        return new Shortcut(swapped ? Opcodes.OPERATION_LITERAL : Opcodes.LITERAL_OPERATION, operationEnd, 1, growth,
+                operation, new BigInteger[]{literal});
+    }
+
+    //Fuse a pair of instructions which often come together.
+    private static Shortcut fuse(int[] opcodes, int[] operands, int[] variableSlots, int start){
+        if(start + 1 >= opcodes.length){
+            return null;
+        }
+        int first = opcode(opcodes, start);
+        int second = opcode(opcodes, start + 1);
+        if(first == Opcodes.DUPLICATE && second == Opcodes.IF && operands[start + 1] >= 0){
+            return new Shortcut(Opcodes.DUPLICATE_IF, start + 2, 1, 1, operands[start + 1], new BigInteger[0]);
+        }
+        if(first == Opcodes.VARIABLE && second == Opcodes.ADD && variableSlots[start] >= 0){
+            return new Shortcut(Opcodes.VARIABLE_ADD, start + 2, 1, 1, variableSlots[start], new BigInteger[0]);
+        }
+        if(first == Opcodes.ASSIGNMENT && second == Opcodes.POP && variableSlots[start] >= 0){
+            return new Shortcut(Opcodes.ASSIGN_POP, start + 2, 1, 0, variableSlots[start], new BigInteger[0]);
+        }
+        return null;
+    }
+
+    //Run an instruction on the values a run has pushed so far.
+    //Returns false, leaving the values alone, if the instruction needs anything else, or could fail.
+    private static boolean apply(int opcode, List<BigInteger> values){
+        int size = values.size();
+        switch(opcode){
+            case Opcodes.TWO: values.add(BigInteger.valueOf(2)); return true;
+            case Opcodes.THREE: values.add(BigInteger.valueOf(3)); return true;
+            case Opcodes.DUPLICATE:
+                if(size < 1){
+                    return false;
+                }
+                values.add(values.get(size - 1));
+                return true;
+            case Opcodes.POP:
+                if(size < 1){
+                    return false;
+                }
+                values.remove(size - 1);
+                return true;
+            case Opcodes.SWAP:
+                if(size < 2){
+                    return false;
+                }
+                values.add(values.remove(size - 2));
+                return true;
+            case Opcodes.ADD:
+            case Opcodes.SUBTRACT:
+            case Opcodes.MULTIPLY:
+            case Opcodes.DIVIDE:
+                if(size < 2){
+                    return false;
+                }
+                //Like the operators, the top-most value comes first.
+                BigInteger first = values.get(size - 1);
+                BigInteger second = values.get(size - 2);
+                if(opcode == Opcodes.DIVIDE && second.signum() == 0){
+                    return false;
+                }
+                BigInteger result = arithmetic(opcode, first, second);
+                if(result.bitLength() > MAX_LITERAL_BITS){
+                    return false;
+                }
+                values.remove(size - 1);
+                values.set(size - 2, result);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static BigInteger arithmetic(int opcode, BigInteger first, BigInteger second){
+        switch(opcode){
+            case Opcodes.ADD: return first.add(second);
+            case Opcodes.SUBTRACT: return first.subtract(second);
+            case Opcodes.MULTIPLY: return first.multiply(second);
+            default: return first.divide(second);
+        }
+    }
+
+    //Skip over pairs of instructions which undo each other, as long as they keep coming.
+    private static Shortcut skip(int[] opcodes, int start){
+        int arguments = 0;
+        int growth = 0;
+        int end = start;
+        while(end + 1 < opcodes.length){
+            int first = opcode(opcodes, end);
+            int second = opcode(opcodes, end + 1);
+            if(first == Opcodes.SWAP && second == Opcodes.SWAP){
+                arguments = Math.max(arguments, 2);
+            } else if(first == Opcodes.DUPLICATE && second == Opcodes.POP){
+                arguments = Math.max(arguments, 1);
+                growth = 1;
+            } else {
+                break;
+            }
+            end += 2;
+        }
+        return end == start ? null : new Shortcut(Opcodes.SKIP, end, arguments, growth, 0, new BigInteger[0]);
+    }
+
+    //Shortcuts are only used while nothing is overridden, so overridable instructions count as their builtin.
+    private static int opcode(int[] opcodes, int idx){
+        return opcodes[idx] < 0 ? ~opcodes[idx] : opcodes[idx];
+    }
+
+    private static boolean isArithmetic(int opcode){
+        return opcode == Opcodes.ADD || opcode == Opcodes.SUBTRACT || opcode == Opcodes.MULTIPLY || opcode == Opcodes.DIVIDE;
+    }
+
+    private static boolean isPowerOfTwo(BigInteger value){
+        return value.signum() > 0 && value.bitCount() == 1;
+    }
+}
@@ -0,0 +1,180 @@
+package lucbui.rayscode.compiler;
+
+import lucbui.rayscode.token.RayscodeFunctionMetadata;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A cache of compiled programs, so code which is run over and over is only lexed and compiled once.
+ *
+ * Programs are looked up by a hash of their source, once the whitespace between tokens is normalized, so the same
+ * code spaced out differently is only compiled once too. Nothing else about the source changes the program.
+ *
+ * The cache holds at most a set number of instructions, across every program in it. Programs are weighed by
+ * RayscodeProgram.getWeight(), so the functions a program declares, and its shortcuts, count towards it too. Once
+ * it's full, the programs used least recently are evicted to make room. A program which is larger than the whole cache is never kept. Code
+ * which fails to compile isn't cached, so its error is reported the same way every time.
+ *
+ * Programs never change once they're compiled, so the same one can be handed out to any number of threads. The
+ * cache is safe to use from any number of threads too, though two threads compiling the same code at the same time
+ * could both compile it.
+ */
+public class ProgramCache {
+
+    //Whitespace, as the lexer sees it. Anything else it doesn't recognize is an error, so it has to stay as it is.
+    private static final String WHITESPACE = "[ \t\f\r\n]+";
+
+    private final long maxInstructions;
+    //Ordered by access, so the least recently used program comes first.
+    private final LinkedHashMap<String, RayscodeProgram> programs = new LinkedHashMap<>(16, 0.75f, true);
+    private long instructions;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Lexes source code into tokens.
+     */
+    @FunctionalInterface
+    public interface Lexer {
+        /**
+         * Lex some source code.
+         * @param source The source code.
+         * @return The tokens.
+         * @throws IOException If the source can't be read.
+         */
+        List<RayscodeFunctionMetadata> lex(String source) throws IOException;
+    }
+
+    /**
+     * Create a cache.
+     * @param maxInstructions The most instructions the cache can hold, across every program in it, as weighed by
+     *                        RayscodeProgram.getWeight().
+     */
+    public ProgramCache(long maxInstructions){
+        if(maxInstructions <= 0){
+            throw new IllegalArgumentException("Cache size must be positive, but was " + maxInstructions);
+        }
+        this.maxInstructions = maxInstructions;
+    }
+
+    /**
+     * Get the program for some source code, compiling it if it isn't cached.
+     * @param source The source code.
+     * @param lexer Lexes the source code, if it has to be compiled.
+     * @return The compiled program.
+     * @throws IOException If the lexer can't read the source.
+     */
+    public RayscodeProgram get(String source, Lexer lexer) throws IOException {
+        String key = hash(source);
+        synchronized(this){
+            RayscodeProgram program = programs.get(key);
+            if(program != null){
+                hits++;
+                return program;
+            }
+            misses++;
+        }
+        //Compiled without holding the lock, so a large program doesn't hold up everyone else.
+        RayscodeProgram program = RayscodeCompiler.compile(lexer.lex(source));
+        put(key, program);
+        return program;
+    }
+
+    private synchronized void put(String key, RayscodeProgram program){
+        long size = weigh(program);
+        if(size > maxInstructions){
+            return;
+        }
+        RayscodeProgram old = programs.put(key, program);
+        if(old != null){
+            instructions -= weigh(old);
+        }
+        instructions += size;
+        //The program just added is the most recently used, so it's never evicted to make room for itself.
+        Iterator<RayscodeProgram> eldest = programs.values().iterator();
+        while(instructions > maxInstructions){
+            instructions -= weigh(eldest.next());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static long weigh(RayscodeProgram program){
+        return program.getWeight();
+    }
+
+    //Hash the source, with its whitespace normalized.
+    private static String hash(String source){
+        String normalized = source.replaceAll(WHITESPACE, " ").trim();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(normalized.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex){
+            //Every JVM has to support SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Get the number of lookups which found their program in the cache.
+     * @return The number of hits.
+     */
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups which had to compile their program.
+     * @return The number of misses.
+     */
+    public synchronized long getMisses(){
+        return misses;
+    }
+
+    /**
+     * Get the number of programs evicted to make room for others.
+     * @return The number of evictions.
+     */
+    public synchronized long getEvictions(){
+        return evictions;
+    }
+
+    /**
+     * Get the number of programs in the cache.
+     * @return The number of programs.
+     */
+    public synchronized int size(){
+        return programs.size();
+    }
+
+    /**
+     * Get the number of instructions in the cache, across every program in it, as weighed by
+     * RayscodeProgram.getWeight().
+     * @return The number of instructions.
+     */
+    public synchronized long getInstructions(){
+        return instructions;
+    }
+
+    /**
+     * Remove every program from the cache. The statistics are kept.
+     */
+    public synchronized void clear(){
+        programs.clear();
+        instructions = 0;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "ProgramCache{programs=" + programs.size() + ", instructions=" + instructions + "/" + maxInstructions +
+                ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "}";
+    }
+}
@@ -0,0 +1,332 @@
+package lucbui.rayscode.compiler;
+
+import lucbui.rayscode.token.Rayscode;
+import lucbui.rayscode.token.RayscodeCustomFunction;
+import lucbui.rayscode.token.RayscodeFunction;
+import lucbui.rayscode.token.RayscodeFunctionMetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Turns lexed raysCode into a RayscodeProgram.
+ *
+ * Anything that can be worked out once, before evaluation, is done here, so the evaluator doesn't need to
+ * repeat it every time an instruction runs.
+ */
+public class RayscodeCompiler {
+
+    /**
+     * The largest function body which can be inlined.
+     */
+    static final int MAX_INLINED_INSTRUCTIONS = 32;
+
+    private RayscodeCompiler(){
+        //Static methods only.
+    }
+
+    /**
+     * Compile a piece of lexed code.
+     * @param code The code to compile.
+     * @return The compiled program.
+     */
+    public static RayscodeProgram compile(List<RayscodeFunctionMetadata> code){
+        return compile(code, SymbolTable.EMPTY);
+    }
+
+    /**
+     * Compile a piece of lexed code, which shares variables and methods with code already compiled.
+     * Function bodies are compiled this way, so their slots line up with the code that calls them.
+     * @param code The code to compile.
+     * @param symbols The symbol table of the code to share with.
+     * @return The compiled program.
+     */
+    public static RayscodeProgram compile(List<RayscodeFunctionMetadata> code, SymbolTable symbols){
+        return compile(code, symbols, 0);
+    }
+
+    /**
+     * Compile the body of a function, which shares variables and methods with the code declaring it.
+     * The body starts with its parameters on the stack, which the stack verifier takes into account.
+     * @param code The code to compile.
+     * @param symbols The symbol table of the code to share with.
+     * @param parameters The number of parameters the function takes.
+     * @return The compiled program.
+     */
+    public static RayscodeProgram compile(List<RayscodeFunctionMetadata> code, SymbolTable symbols, int parameters){
+        List<RayscodeFunctionMetadata> copy = new ArrayList<>(code);
+        int[] jumpTargets = resolveJumpTargets(copy);
+        SymbolTable extendedSymbols = symbols.extend(collectNames(copy));
+        int[] methodSlots = new int[copy.size()];
+        int[] variableSlots = new int[copy.size()];
+        resolveSlots(copy, extendedSymbols, methodSlots, variableSlots);
+        RayscodeFunctionMetadata[] functions = new RayscodeFunctionMetadata[copy.size()];
+        String[] declarationErrors = new String[copy.size()];
+        resolveFunctions(copy, extendedSymbols, jumpTargets, functions, declarationErrors);
+        boolean[] safeLoops = checkLoopSafety(copy, jumpTargets);
+        int[] opcodes = new int[copy.size()];
+        int[] operands = new int[copy.size()];
+        lower(copy, jumpTargets, safeLoops, methodSlots, opcodes, operands);
+        return new RayscodeProgram(copy, jumpTargets, safeLoops, extendedSymbols, methodSlots, variableSlots,
+                functions, declarationErrors, findTailStart(copy), opcodes, operands, findBuiltinSlots(opcodes, methodSlots),
+                PeepholeOptimizer.optimize(opcodes, operands, variableSlots), isInlinable(opcodes),
+                StackVerifier.verify(opcodes, operands, jumpTargets, variableSlots, parameters));
+    }
+
+    //Check if code is small, and only works on the stack, so it can be run as a function without a scope of its own.
+    //It can't call anything, so it can't recurse, or read or assign variables, so the scope it would get is never
+    //used. It can't wait for input or output anything either, which functions handle differently.
+    private static boolean isInlinable(int[] opcodes){
+        if(opcodes.length > MAX_INLINED_INSTRUCTIONS){
+            return false;
+        }
+        for(int opcode : opcodes){
+            switch(opcode < 0 ? ~opcode : opcode){
+                case Opcodes.TWO:
+                case Opcodes.THREE:
+                case Opcodes.SIZE:
+                case Opcodes.ADD:
+                case Opcodes.SUBTRACT:
+                case Opcodes.MULTIPLY:
+                case Opcodes.DIVIDE:
+                case Opcodes.SWAP:
+                case Opcodes.POP:
+                case Opcodes.DUPLICATE:
+                case Opcodes.ROLL:
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    //Find the method slot of every builtin instruction which could be overridden by a method.
+    //VARIABLE always looks for a method anyway, and METHOD is only ever skipped over, so they don't count.
+    private static int[] findBuiltinSlots(int[] opcodes, int[] methodSlots){
+        return IntStream.range(0, opcodes.length)
+                .filter(idx -> opcodes[idx] < 0)
+                .filter(idx -> ~opcodes[idx] != Opcodes.VARIABLE && ~opcodes[idx] != Opcodes.METHOD)
+                .map(idx -> methodSlots[idx])
+                .distinct()
+                .toArray();
+    }
+
+    //Lower every instruction to an opcode, and the one operand it needs.
+    //The operand of an IF or ELSE is its jump target. The operand of an ENDLOOP is its jump target if the loop is safe,
+    //or -1 if it isn't, so the evaluator only needs one check before jumping. Everything else has an operand of -1.
+    private static void lower(List<RayscodeFunctionMetadata> code, int[] jumpTargets, boolean[] safeLoops,
+                              int[] methodSlots, int[] opcodes, int[] operands){
+        for(int idx = 0; idx < code.size(); idx++){
+            int opcode = Opcodes.of(code.get(idx).getFunction());
+            opcodes[idx] = methodSlots[idx] >= 0 ? ~opcode : opcode;
+            if(opcode == Opcodes.IF || opcode == Opcodes.ELSE){
+                operands[idx] = jumpTargets[idx];
+            } else if(opcode == Opcodes.ENDLOOP){
+                operands[idx] = safeLoops[idx] ? jumpTargets[idx] : -1;
+            } else {
+                operands[idx] = -1;
+            }
+        }
+    }
+
+    //Find where the trailing ENDIFs of the code begin. ENDIFs do nothing, and their IDs are never names, so they can't
+    //be overridden either. Once an instruction before them finishes, the code is effectively finished too.
+    private static int findTailStart(List<RayscodeFunctionMetadata> code){
+        int tailStart = code.size();
+        while(tailStart > 0 && code.get(tailStart - 1).getFunction() == Rayscode.ENDIF){
+            tailStart--;
+        }
+        return tailStart;
+    }
+
+    //Build the function declared by every STARTFUNC, and point its jump target at the ENDFUNC, so declaring a function
+    //at runtime only has to bind it and skip the body.
+    //A declaration looks like: STARTFUNC [name] (PARAM, ...) [body] ENDFUNC. Malformed declarations get an error
+    //instead, which is only reported if the declaration is actually reached.
+    private static void resolveFunctions(List<RayscodeFunctionMetadata> code, SymbolTable symbols, int[] jumpTargets,
+                                         RayscodeFunctionMetadata[] functions, String[] declarationErrors){
+        for(int idx = 0; idx < code.size(); idx++){
+            if(code.get(idx).getFunction() != Rayscode.STARTFUNC){
+                continue;
+            }
+            String funcName = idx + 1 < code.size() ? code.get(idx + 1).getId() : null;
+            if(funcName == null){
+                declarationErrors[idx] = "Illegal method overwritten!";
+                continue;
+            }
+            int numParams = 0;
+            int bodyStart = idx + 2;
+            while(bodyStart < code.size() && code.get(bodyStart).getFunction() == Rayscode.PARAM){
+                numParams++;
+                bodyStart++;
+            }
+            int bodyEnd = bodyStart;
+            while(bodyEnd < code.size() && code.get(bodyEnd).getFunction() != Rayscode.ENDFUNC){
+                RayscodeFunction function = code.get(bodyEnd).getFunction();
+                if(function == Rayscode.STARTFUNC){
+                    break;
+                }
+                if(function == Rayscode.PARAM){
+                    declarationErrors[idx] = "Unexpected parameter declaration";
+                    break;
+                }
+                bodyEnd++;
+            }
+            if(declarationErrors[idx] != null){
+                continue;
+            }
+            if(bodyEnd == code.size() || code.get(bodyEnd).getFunction() != Rayscode.ENDFUNC){
+                declarationErrors[idx] = "Function " + funcName + "missing end declaration";
+                continue;
+            }
+            functions[idx] = RayscodeFunctionMetadata.make(funcName,
+                    new RayscodeCustomFunction(numParams, code.subList(bodyStart, bodyEnd), symbols));
+            jumpTargets[idx] = bodyEnd;
+        }
+    }
+
+    //Match every control structure with the index it jumps to.
+    //An IF jumps to the first ELSE or ENDIF after it with the same ID, an ELSE to the first ENDIF after it with the
+    //same ID, and an ENDLOOP to the closest STARTLOOP before it with the same ID. Unmatched structures are left as -1,
+    //so they only become an error if they are actually reached.
+    private static int[] resolveJumpTargets(List<RayscodeFunctionMetadata> code){
+        int[] jumpTargets = new int[code.size()];
+        Arrays.fill(jumpTargets, -1);
+
+        //Walking forwards, remember the last STARTLOOP seen for each ID.
+        Map<String, Integer> loopStarts = new HashMap<>();
+        for(int idx = 0; idx < code.size(); idx++){
+            RayscodeFunctionMetadata metadata = code.get(idx);
+            RayscodeFunction function = metadata.getFunction();
+            if(function == Rayscode.STARTLOOP){
+                loopStarts.put(metadata.getId(), idx);
+            } else if(function == Rayscode.ENDLOOP){
+                jumpTargets[idx] = loopStarts.getOrDefault(metadata.getId(), -1);
+            }
+        }
+
+        //Walking backwards, remember the next ELSE/ENDIF, and the next ENDIF, seen for each ID.
+        Map<String, Integer> nextElseOrEndIf = new HashMap<>();
+        Map<String, Integer> nextEndIf = new HashMap<>();
+        for(int idx = code.size() - 1; idx >= 0; idx--){
+            RayscodeFunctionMetadata metadata = code.get(idx);
+            RayscodeFunction function = metadata.getFunction();
+            if(function == Rayscode.IF){
+                jumpTargets[idx] = nextElseOrEndIf.getOrDefault(metadata.getId(), -1);
+            } else if(function == Rayscode.ELSE){
+                jumpTargets[idx] = nextEndIf.getOrDefault(metadata.getId(), -1);
+                nextElseOrEndIf.put(metadata.getId(), idx);
+            } else if(function == Rayscode.ENDIF){
+                nextEndIf.put(metadata.getId(), idx);
+                nextElseOrEndIf.put(metadata.getId(), idx);
+            }
+        }
+        return jumpTargets;
+    }
+
+    //Every ID which could be a variable or method name.
+    //Assignment binds to the ID of the instruction before it, whatever that happens to be.
+    private static Set<String> collectNames(List<RayscodeFunctionMetadata> code){
+        Set<String> names = new LinkedHashSet<>();
+        for(int idx = 0; idx < code.size(); idx++){
+            RayscodeFunctionMetadata metadata = code.get(idx);
+            if(isName(metadata.getId())){
+                names.add(metadata.getId());
+            } else if(metadata.getFunction() == Rayscode.ASSIGNMENT && idx > 0){
+                names.add(code.get(idx - 1).getId());
+            }
+        }
+        return names;
+    }
+
+    //Instructions whose ID isn't a name can never be overridden by a method, so they get a method slot of -1, and the
+    //evaluator doesn't bother checking them.
+    private static void resolveSlots(List<RayscodeFunctionMetadata> code, SymbolTable symbols, int[] methodSlots, int[] variableSlots){
+        for(int idx = 0; idx < code.size(); idx++){
+            RayscodeFunctionMetadata metadata = code.get(idx);
+            methodSlots[idx] = isName(metadata.getId()) ? symbols.getSlot(metadata.getId()) : -1;
+            if(metadata.getFunction() == Rayscode.ASSIGNMENT){
+                variableSlots[idx] = idx > 0 ? symbols.getSlot(code.get(idx - 1).getId()) : -1;
+            } else {
+                variableSlots[idx] = methodSlots[idx];
+            }
+        }
+    }
+
+    //Methods can only be declared with names like rays[A-Z0-9][A-Za-z0-9]*, the same as the lexer's VarName.
+    //This runs on every instruction, so it's checked by hand rather than with a regex.
+    private static boolean isName(String id){
+        if(id == null || id.length() < 5 || !id.startsWith("rays")){
+            return false;
+        }
+        char first = id.charAt(4);
+        if(!((first >= 'A' && first <= 'Z') || (first >= '0' && first <= '9'))){
+            return false;
+        }
+        for(int idx = 5; idx < id.length(); idx++){
+            char next = id.charAt(idx);
+            if(!((next >= 'A' && next <= 'Z') || (next >= 'a' && next <= 'z') || (next >= '0' && next <= '9'))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Check the safety of every loop, to minimize the possibility of infinite loops.
+    private static boolean[] checkLoopSafety(List<RayscodeFunctionMetadata> code, int[] jumpTargets){
+        boolean[] safeLoops = new boolean[code.size()];
+        for(int idx = 0; idx < code.size(); idx++){
+            if(code.get(idx).getFunction() == Rayscode.ENDLOOP){
+                //If the loop has no start (-1), everything before the end is treated as the loop body.
+                int start = jumpTargets[idx];
+                safeLoops[idx] = checkForSafeLoop(code, start, idx) && calculateWork(code, start, idx) != 0;
+            }
+        }
+        return safeLoops;
+    }
+
+    private static boolean checkForSafeLoop(List<RayscodeFunctionMetadata> code, int start, int end){
+        //We can check the safety of a loop, by seeing if the end of the loop is inside of an if-loop.
+        //We do this by moving backwards. If we encounter an ENDIF, we push to the stack. If we encounter an IF, we pop.
+        //If we run out of IDs to pop, we must be in an IF loop:
+        // [STARTLOOP] IF ... ELSE [ENDLOOP] ENDIF => Hits an IF before encountering an ENDIF, inside a conditional.
+        // [STARTLOOP] IF ... ELSE ... ENDIF [ENDLOOP] => Hits an ENDIF followed by an IF, so it was outside of the block.
+        // [STARTLOOP] ... [ENDLOOP] => Never hits an IF, so it is an invalid loop.
+        // IF [STARTLOOP] ELSE [ENDLOOP] ENDIF => Never hits an IF, so it is an invalid loop.
+        int numberOfEncounteredIds = 0;
+        for(int idx = end - 1; idx > start; idx--){
+            RayscodeFunction functionToCheck = code.get(idx).getFunction();
+            if(functionToCheck == Rayscode.ENDIF){
+                numberOfEncounteredIds++;
+            } else if(functionToCheck == Rayscode.IF){
+                if(numberOfEncounteredIds == 0) {
+                    return true;
+                } else {
+                    numberOfEncounteredIds--;
+                }
+            }
+        }
+        return false;
+    }
+
+    //Calculate the amount of work being done between the two ends of a loop.
+    //If something is being created or destroyed, we should be alright. Only when nothing is happening should we worry.
+    //NOTE: This doesn't take into account if-else loops, so it doesn't give a completely accurate number.
+    //It will *definitely* tell you if nothing is happening though.
+    private static int calculateWork(List<RayscodeFunctionMetadata> code, int start, int end){
+        int workSum = 0;
+        for(int idx = end - 1; idx > start; idx--){
+            RayscodeFunction functionToCheck = code.get(idx).getFunction();
+            //The total amount of "work" this function does. >0 means things are being made, <0 means things are being destroyed.
+            workSum += functionToCheck.getNumberOfReturns() - functionToCheck.getNumberOfArguments();
+        }
+        return workSum;
+    }
+}
@@ -0,0 +1,273 @@
+package lucbui.rayscode.compiler;
+
+import lucbui.rayscode.token.RayscodeCustomFunction;
+import lucbui.rayscode.token.RayscodeFunctionMetadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * A piece of lexed raysCode, along with everything the compiler has worked out about it ahead of time.
+ *
+ * Programs are built through RayscodeCompiler, and are not modified once built. Everything a run changes, like the
+ * stack, variables and limits, belongs to the evaluator running it, so one program can be compiled once and run by
+ * any number of evaluators at the same time, on any number of threads.
+ */
+public class RayscodeProgram {
+
+    private final List<RayscodeFunctionMetadata> code;
+    private final int[] jumpTargets;
+    private final boolean[] safeLoops;
+    private final SymbolTable symbols;
+    private final int[] methodSlots;
+    private final int[] variableSlots;
+    private final RayscodeFunctionMetadata[] functions;
+    private final String[] declarationErrors;
+    private final int tailStart;
+    private final int[] opcodes;
+    private final int[] operands;
+    private final int[] builtinSlots;
+    private final Shortcut[] shortcuts;
+    private final boolean inlinable;
+    private final StackEffects stackEffects;
+    private final long weight;
+
+    /**
+     * Create a compiled program.
+     * @param code The lexed code.
+     * @param jumpTargets The resolved jump target for each index of the code, or -1 if there is none.
+     * @param safeLoops Whether each index of the code is an ENDLOOP which passed the loop safety check.
+     * @param symbols The variable and method names used by the code.
+     * @param methodSlots The slot of the method which could override each index of the code, or -1 if there is none.
+     * @param variableSlots The slot of the variable each index of the code reads or assigns, or -1 if there is none.
+     * @param functions The function declared at each index of the code, or null if there is none.
+     * @param declarationErrors Why the function declared at each index of the code is malformed, or null if it isn't.
+     * @param tailStart The index where the instructions which do nothing at the end of the code begin.
+     * @param opcodes The opcode of each index of the code.
+     * @param operands The operand of each index of the code, or -1 if there is none.
+     * @param builtinSlots The method slots which could override a builtin instruction in the code.
+     * @param shortcuts The shortcut starting at each index of the code, or null if there is none.
+     * @param inlinable Whether the code can be run as a function without a scope or evaluator of its own.
+     * @param stackEffects What the stack verifier proved about the size of the stack while the code runs.
+     */
+    RayscodeProgram(List<RayscodeFunctionMetadata> code, int[] jumpTargets, boolean[] safeLoops,
+                    SymbolTable symbols, int[] methodSlots, int[] variableSlots,
+                    RayscodeFunctionMetadata[] functions, String[] declarationErrors, int tailStart,
+                    int[] opcodes, int[] operands, int[] builtinSlots, Shortcut[] shortcuts,
+                    boolean inlinable, StackEffects stackEffects) {
+        //Copied, so whoever lexed the code can't change it out from under us.
+        this.code = Collections.unmodifiableList(new ArrayList<>(code));
+        this.jumpTargets = jumpTargets;
+        this.safeLoops = safeLoops;
+        this.symbols = symbols;
+        this.methodSlots = methodSlots;
+        this.variableSlots = variableSlots;
+        this.functions = functions;
+        this.declarationErrors = declarationErrors;
+        this.tailStart = tailStart;
+        this.opcodes = opcodes;
+        this.operands = operands;
+        this.builtinSlots = builtinSlots;
+        this.shortcuts = shortcuts;
+        this.inlinable = inlinable;
+        this.stackEffects = stackEffects;
+        this.weight = weigh();
+    }
+
+    //Each instruction counts once, for its token and everything worked out about it, and the program once more for
+    //itself. Each shortcut counts once, plus once for every 64 bits of its literals, since folding constants can make
+    //them any size. The function programs are built along with this one, and kept alive by it, so they count too.
+    private long weigh(){
+        long total = code.size() + 1L;
+        for(Shortcut shortcut : shortcuts){
+            if(shortcut == null){
+                continue;
+            }
+            total++;
+            for(int literal = 0; literal < shortcut.getNumberOfLiterals(); literal++){
+                total += shortcut.getLiteral(literal).bitLength() / Long.SIZE + 1;
+            }
+        }
+        for(RayscodeFunctionMetadata function : functions){
+            if(function != null && function.getFunction() instanceof RayscodeCustomFunction){
+                total += ((RayscodeCustomFunction) function.getFunction()).getProgram().getWeight();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Get the lexed code.
+     * @return The code, which cannot be modified.
+     */
+    public List<RayscodeFunctionMetadata> getCode() {
+        return code;
+    }
+
+    /**
+     * Get the index control flow jumps to from a control structure.
+     * For an IF, this is its ELSE or ENDIF. For an ELSE, this is its ENDIF. For an ENDLOOP, this is its STARTLOOP.
+     * For a STARTFUNC, this is the ENDFUNC of its declaration.
+     * @param index The index of the control structure.
+     * @return The index to jump to, or -1 if the structure has no match.
+     */
+    public int getJumpTarget(int index) {
+        return jumpTargets[index];
+    }
+
+    /**
+     * Check if the loop ending at an index is safe to repeat.
+     * @param index The index of the ENDLOOP.
+     * @return True if the loop passed the loop safety check.
+     */
+    public boolean isSafeLoop(int index) {
+        return safeLoops[index];
+    }
+
+    /**
+     * Get the variable and method names used by this program.
+     * @return The symbol table.
+     */
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * Get the slot of the method which would override an instruction, if one were declared.
+     * @param index The index of the instruction.
+     * @return The method slot, or -1 if the instruction can never be overridden.
+     */
+    public int getMethodSlot(int index) {
+        return methodSlots[index];
+    }
+
+    /**
+     * Get the slot of the variable an instruction reads or assigns.
+     * For a VARIABLE or METHOD this is its own name. For an ASSIGNMENT, this is the ID of the instruction before it.
+     * @param index The index of the instruction.
+     * @return The variable slot, or -1 if the instruction has none.
+     */
+    public int getVariableSlot(int index) {
+        return variableSlots[index];
+    }
+
+    /**
+     * Get the function declared by a STARTFUNC. Functions are built once, when the program is compiled.
+     * @param index The index of the STARTFUNC.
+     * @return The declared function, with the function's name as its ID.
+     * @throws IllegalArgumentException If the declaration is malformed.
+     */
+    public RayscodeFunctionMetadata getFunction(int index) {
+        if(declarationErrors[index] != null){
+            throw new IllegalArgumentException(declarationErrors[index]);
+        }
+        return functions[index];
+    }
+
+    /**
+     * Check if an instruction is in tail position: once it finishes, nothing else in the program has any effect.
+     * @param index The index of the instruction.
+     * @return True if the instruction is the last one the program runs.
+     */
+    public boolean isTailPosition(int index) {
+        return index + 1 >= tailStart;
+    }
+
+    /**
+     * Get the opcode of an instruction.
+     * @param index The index of the instruction.
+     * @return The opcode, from Opcodes. If the instruction could be overridden by a method, this is ~opcode instead.
+     */
+    public int getOpcode(int index) {
+        return opcodes[index];
+    }
+
+    /**
+     * Get the operand of an instruction.
+     * For an IF or ELSE, this is its jump target. For an ENDLOOP, this is its jump target if the loop is safe.
+     * @param index The index of the instruction.
+     * @return The operand, or -1 if there is none.
+     */
+    public int getOperand(int index) {
+        return operands[index];
+    }
+
+    /**
+     * Check if any builtin instruction in this program, like raysP, is overridden by a method.
+     * @param hasMethod Checks if there is a method in a slot.
+     * @return True if any method slot which could override a builtin instruction has a method.
+     */
+    public boolean isAnyBuiltinOverridden(IntPredicate hasMethod) {
+        for(int slot : builtinSlots){
+            if(hasMethod.test(slot)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the shortcut which can run the instructions starting at an index, as long as no builtin is overridden.
+     * @param index The index of the instruction.
+     * @return The shortcut, or null if there is none.
+     * @see #isAnyBuiltinOverridden(IntPredicate)
+     */
+    public Shortcut getShortcut(int index) {
+        return shortcuts[index];
+    }
+
+    /**
+     * Check if this program can be inlined when it's called as a function: run straight away, in a stack frame on the
+     * caller's evaluator, rather than by an evaluator of its own.
+     * Only small programs which work on nothing but the stack can be. Even then, the builtins they run must not be
+     * overridden by a method, since a method would have to be called.
+     * @return True if the program can be inlined.
+     */
+    public boolean isInlinable() {
+        return inlinable;
+    }
+
+    /**
+     * Get what the stack verifier proved about the size of the stack while this program runs.
+     * @return The stack effects, which only hold while isStackVerified() is true.
+     * @see #isStackVerified(IntPredicate)
+     */
+    public StackEffects getStackEffects() {
+        return stackEffects;
+    }
+
+    /**
+     * Check if the stack effects of this program hold: no builtin is overridden by a method, and neither is any
+     * variable the verifier took to only ever hold values.
+     * @param hasMethod Checks if there is a method in a slot.
+     * @return True if the stack effects can be used.
+     */
+    public boolean isStackVerified(IntPredicate hasMethod) {
+        return !isAnyBuiltinOverridden(hasMethod) && !stackEffects.isAnyVariableOverridden(hasMethod);
+    }
+
+    /**
+     * Get the number of instructions in this program.
+     * @return The program length.
+     */
+    public int size() {
+        return code.size();
+    }
+
+    /**
+     * Get roughly how much memory this program takes up, counting the programs of the functions it declares.
+     * The weight is in instructions: it's the number of instructions in the program and its functions, plus a little
+     * for each program, shortcut and large literal, which take up about as much room as an instruction each.
+     * @return The weight, which is at least 1, even for an empty program.
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public String toString(){
+        return code.toString();
+    }
+}
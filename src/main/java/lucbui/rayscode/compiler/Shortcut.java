@@ -0,0 +1,108 @@
+package lucbui.rayscode.compiler;
+
+import java.math.BigInteger;
+
+/**
+ * A quicker way to run a sequence of builtin instructions, worked out by PeepholeOptimizer.
+ *
+ * A shortcut is only valid while none of the instructions it covers are overridden by a method, and while the stack
+ * has at least getArguments() values, with room for getGrowth() more. Otherwise the instructions have to be run one
+ * by one, so they fail exactly as they would have. Some shortcuts have conditions of their own, like a variable
+ * having a value, which are checked when they're run.
+ */
+public final class Shortcut {
+
+    private final int opcode;
+    private final int end;
+    private final int arguments;
+    private final int growth;
+    private final int operand;
+    private final BigInteger[] literals;
+
+    /**
+     * Create a shortcut.
+     * @param opcode What the shortcut does, one of the shortcut opcodes in Opcodes.
+     * @param end The index of the first instruction after the ones the shortcut covers.
+     * @param arguments The number of values the instructions need on the stack.
+     * @param growth The most the stack grows by while the instructions run.
+     * @param operand What the shortcut works on, which depends on its opcode, or 0.
+     * @param literals The literal values the shortcut uses, bottom-most first, or an empty array.
+     */
+    Shortcut(int opcode, int end, int arguments, int growth, int operand, BigInteger[] literals){
+        this.opcode = opcode;
+        this.end = end;
+        this.arguments = arguments;
+        this.growth = growth;
+        this.operand = operand;
+        this.literals = literals;
+    }
+
+    /**
+     * Get what the shortcut does.
+     * @return One of the shortcut opcodes in Opcodes.
+     */
+    public int getOpcode(){
+        return opcode;
+    }
+
+    /**
+     * Get where to carry on once the shortcut is run, unless it jumps.
+     * @return The index of the first instruction after the ones the shortcut covers.
+     * @see #isJump()
+     */
+    public int getEnd(){
+        return end;
+    }
+
+    /**
+     * Get the number of values the instructions need on the stack.
+     * @return The number of values needed.
+     */
+    public int getArguments(){
+        return arguments;
+    }
+
+    /**
+     * Get the most the stack grows by while the instructions run, which the stack must have room for.
+     * @return The number of extra values the stack may hold at once.
+     */
+    public int getGrowth(){
+        return growth;
+    }
+
+    /**
+     * Get what the shortcut works on.
+     * For SHIFT_LEFT and SHIFT_RIGHT, this is the number of bits to shift by. For LITERAL_OPERATION and
+     * OPERATION_LITERAL, it's the opcode of the arithmetic. For DUPLICATE_IF, it's the IF's jump target. For
+     * VARIABLE_ADD and ASSIGN_POP, it's the variable slot.
+     * @return The operand.
+     */
+    public int getOperand(){
+        return operand;
+    }
+
+    /**
+     * Check if the shortcut can jump, in which case it may not carry on from getEnd().
+     * @return True if the shortcut ends with an IF.
+     */
+    public boolean isJump(){
+        return opcode == Opcodes.DUPLICATE_IF;
+    }
+
+    /**
+     * Get a literal value the shortcut uses.
+     * @param index The index of the value, from the bottom-most.
+     * @return The value.
+     */
+    public BigInteger getLiteral(int index){
+        return literals[index];
+    }
+
+    /**
+     * Get the number of literal values the shortcut uses.
+     * @return The number of values.
+     */
+    public int getNumberOfLiterals(){
+        return literals.length;
+    }
+}
@@ -0,0 +1,107 @@
+package lucbui.rayscode.compiler;
+
+import java.util.function.IntPredicate;
+
+/**
+ * What StackVerifier has proven about the size of a program's stack frame, before it's run.
+ *
+ * The proof assumes no builtin instruction is overridden by a method, and that the variables the program assigns
+ * are never methods either, so reading them only ever pushes a value. It only holds while that's true, which
+ * RayscodeProgram.isStackVerified() checks. Other variables and functions could do anything to the stack.
+ */
+public final class StackEffects {
+
+    private final boolean[] hasArguments;
+    private final int growth;
+    private final int[] variableSlots;
+    private final int underflow;
+    private final int underflowArguments;
+    private final int underflowDepth;
+    private final int underflowPeak;
+
+    /**
+     * Create the stack effects of a program.
+     * @param hasArguments Whether each instruction is certain to have the values it needs on the stack.
+     * @param growth The most the frame grows by while the program runs, or -1 if there's no telling.
+     * @param variableSlots The variable slots assumed to never hold a method.
+     * @param underflow The index of the instruction which certainly fails for lack of values, or -1 if there is none.
+     * @param underflowArguments The number of values the failing instruction needs.
+     * @param underflowDepth The size of the frame when the failing instruction runs.
+     * @param underflowPeak The largest the frame gets before the failing instruction runs.
+     */
+    StackEffects(boolean[] hasArguments, int growth, int[] variableSlots, int underflow,
+                 int underflowArguments, int underflowDepth, int underflowPeak){
+        this.hasArguments = hasArguments;
+        this.growth = growth;
+        this.variableSlots = variableSlots;
+        this.underflow = underflow;
+        this.underflowArguments = underflowArguments;
+        this.underflowDepth = underflowDepth;
+        this.underflowPeak = underflowPeak;
+    }
+
+    /**
+     * Check if an instruction is certain to have the values it needs on the stack whenever it's run, so it can be run
+     * without checking.
+     * @param index The index of the instruction.
+     * @return True if the instruction can't run out of values.
+     */
+    public boolean hasArguments(int index){
+        return hasArguments[index];
+    }
+
+    /**
+     * Get the most the stack frame grows by while the program runs, over the size it started at.
+     * This is only known for programs which never call a function or wait for input.
+     * @return The largest growth, or -1 if it isn't known.
+     */
+    public int getGrowth(){
+        return growth;
+    }
+
+    /**
+     * Get the instruction which is certain to fail for lack of values, if the program is run from the start with
+     * nothing but its parameters in its frame. Only the straight line of instructions from the start is followed, and
+     * only as long as every value it makes fits in a long, so nothing before the failing instruction can run into the
+     * memory or time limits first.
+     * @return The index of the instruction, or -1 if there is none.
+     */
+    public int getUnderflow(){
+        return underflow;
+    }
+
+    /**
+     * Get the number of values the instruction from getUnderflow() needs.
+     * @return The number of values needed.
+     */
+    public int getUnderflowArguments(){
+        return underflowArguments;
+    }
+
+    /**
+     * Get the size of the stack when the instruction from getUnderflow() fails.
+     * @return The size of the stack.
+     */
+    public int getUnderflowDepth(){
+        return underflowDepth;
+    }
+
+    /**
+     * Get the largest the stack gets before the instruction from getUnderflow() fails. If this is over the stack
+     * limit, the program fails on that first.
+     * @return The largest size of the stack.
+     */
+    public int getUnderflowPeak(){
+        return underflowPeak;
+    }
+
+    //Check if any of the variables assumed to never be methods is one.
+    boolean isAnyVariableOverridden(IntPredicate hasMethod){
+        for(int slot : variableSlots){
+            if(hasMethod.test(slot)){
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,301 @@
+package lucbui.rayscode.compiler;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Works out the StackEffects of a program, by following every path through it and keeping track of the smallest and
+ * largest its stack frame could be before each instruction.
+ *
+ * Where paths meet, after an IF or at the start of a loop, the bounds are widened to cover both. A loop which keeps
+ * growing the stack gets no upper bound, and anything which runs code the verifier can't see, like a function call,
+ * could leave the frame any size at all.
+ *
+ * Like PeepholeOptimizer, this assumes no builtin is overridden, so the evaluator has to check that before using any
+ * of it.
+ *
+ * Finding an instruction which is certain to run out of values is much narrower. It only follows the straight line of
+ * instructions from the start of the program, up to the first which could go anywhere else, like an IF, ELSE or the
+ * end of a loop, or do anything the verifier can't see, like reading input or a variable. Code which only runs out
+ * on some of the paths through an IF, or after going around a loop, is left to fail when it runs.
+ */
+final class StackVerifier {
+
+    //The upper bound of a frame which could be any size.
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+    //The number of times the bounds before an instruction can change before they're widened all the way, so loops
+    //which grow or shrink the stack don't have to be followed around every time.
+    private static final int MAX_CHANGES = 8;
+
+    private StackVerifier(){
+        //Static methods only.
+    }
+
+    /**
+     * Work out the stack effects of a program.
+     * @param opcodes The opcodes of the program, as lowered by RayscodeCompiler.
+     * @param operands The operands of the program, as lowered by RayscodeCompiler.
+     * @param jumpTargets The resolved jump target of each instruction of the program, or -1 if there is none.
+     * @param variableSlots The variable slot of each instruction of the program, or -1 if it has none.
+     * @param parameters The size of the frame the program starts with: the number of parameters of a function, or 0.
+     * @return The stack effects.
+     */
+    static StackEffects verify(int[] opcodes, int[] operands, int[] jumpTargets, int[] variableSlots, int parameters){
+        int[] plainSlots = findPlainVariables(opcodes, variableSlots);
+        Set<Integer> plain = new HashSet<>();
+        for(int slot : plainSlots){
+            plain.add(slot);
+        }
+        Bounds bounds = new Bounds(opcodes.length + 1);
+        bounds.flow(0, parameters, parameters);
+        while(!bounds.worklist.isEmpty()){
+            int idx = bounds.worklist.pop();
+            bounds.queued[idx] = false;
+            int low = bounds.lows[idx];
+            int high = bounds.highs[idx];
+            int opcode = opcode(opcodes, idx);
+            switch(opcode){
+                case Opcodes.IF:
+                    if(high >= 1){
+                        bounds.flow(idx + 1, Math.max(low, 1), high);
+                        if(operands[idx] >= 0){
+                            bounds.flow(operands[idx] + 1, Math.max(low, 1), high);
+                        }
+                    }
+                    break;
+                case Opcodes.ELSE:
+                case Opcodes.ENDLOOP:
+                    //Without a target, both fail.
+                    if(operands[idx] >= 0){
+                        bounds.flow(operands[idx] + 1, low, high);
+                    }
+                    break;
+                case Opcodes.STARTFUNC:
+                    if(jumpTargets[idx] >= 0){
+                        bounds.flow(jumpTargets[idx] + 1, low, high);
+                    }
+                    break;
+                case Opcodes.PARAM:
+                case Opcodes.ENDFUNC:
+                    break;
+                case Opcodes.INPUT:
+                    bounds.flow(idx + 1, low, UNBOUNDED);
+                    break;
+                case Opcodes.VARIABLE:
+                    //A plain variable pushes its value, or nothing if it's about to be assigned. Anything else could
+                    //be a function.
+                    if(plain.contains(variableSlots[idx])){
+                        bounds.flow(idx + 1, low, grow(high, 1));
+                    } else {
+                        bounds.flow(idx + 1, 0, UNBOUNDED);
+                    }
+                    break;
+                case Opcodes.EXECUTE:
+                case Opcodes.METHOD:
+                    //METHOD only comes straight after a STARTFUNC, which skips it, but it would run a method bound to
+                    //its name.
+                    bounds.flow(idx + 1, 0, UNBOUNDED);
+                    break;
+                default:
+                    //Anything else fails if the frame is too small, and otherwise always has the same effect.
+                    int required = getArguments(opcode);
+                    if(high >= required){
+                        bounds.flow(idx + 1, Math.max(low, required) + getEffect(opcode), grow(high, getEffect(opcode)));
+                    }
+                    break;
+            }
+        }
+
+        boolean[] hasArguments = new boolean[opcodes.length];
+        int peak = 0;
+        for(int idx = 0; idx <= opcodes.length; idx++){
+            if(bounds.lows[idx] < 0){
+                continue;
+            }
+            if(idx < opcodes.length){
+                hasArguments[idx] = bounds.lows[idx] >= getArguments(opcode(opcodes, idx));
+            }
+            peak = Math.max(peak, bounds.highs[idx]);
+        }
+        int[] underflow = findUnderflow(opcodes, parameters);
+        return new StackEffects(hasArguments, peak == UNBOUNDED ? -1 : peak - parameters, plainSlots,
+                underflow[0], underflow[1], underflow[2], underflow[3]);
+    }
+
+    //Find the variables which only ever hold values, as long as nothing outside the program binds a method to them.
+    //These are the ones the program assigns, but doesn't declare as a function.
+    private static int[] findPlainVariables(int[] opcodes, int[] variableSlots){
+        Set<Integer> assigned = new HashSet<>();
+        Set<Integer> declared = new HashSet<>();
+        for(int idx = 0; idx < opcodes.length; idx++){
+            int opcode = opcode(opcodes, idx);
+            if(opcode == Opcodes.ASSIGNMENT && variableSlots[idx] >= 0){
+                assigned.add(variableSlots[idx]);
+            } else if(opcode == Opcodes.STARTFUNC && idx + 1 < opcodes.length){
+                declared.add(variableSlots[idx + 1]);
+            }
+        }
+        assigned.removeAll(declared);
+        return assigned.stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    //Follow the program from the start, for as long as the instructions always run one after the other, and find the
+    //first which runs out of values. Instructions which could fail some other way, or go somewhere else, stop it.
+    //So does any value which might not fit in a long, so the code before the failing instruction can't take up much
+    //memory or time, and the only other limits it could run into are the stack and instruction limits, which the
+    //evaluator checks for itself. The values the program starts with could be anything, so they can only be moved.
+    //Returns the index of the instruction, the values it needs, the size of the frame, and the largest the frame got.
+    private static int[] findUnderflow(int[] opcodes, int parameters){
+        //The most bits each value in the frame could have, from the bottom of the frame to the top.
+        Deque<Integer> bits = new ArrayDeque<>();
+        for(int parameter = 0; parameter < parameters; parameter++){
+            bits.addLast(Long.SIZE);
+        }
+        int peak = parameters;
+        for(int idx = 0; idx < opcodes.length; idx++){
+            int opcode = opcode(opcodes, idx);
+            if(bits.size() < getArguments(opcode)){
+                return new int[]{idx, getArguments(opcode), bits.size(), peak};
+            }
+            int result;
+            switch(opcode){
+                case Opcodes.TWO:
+                case Opcodes.THREE:
+                    result = 2;
+                    break;
+                case Opcodes.SIZE:
+                    result = Integer.SIZE;
+                    break;
+                case Opcodes.ADD:
+                case Opcodes.SUBTRACT:
+                    result = Math.max(bits.removeLast(), bits.removeLast()) + 1;
+                    break;
+                case Opcodes.MULTIPLY:
+                    result = bits.removeLast() + bits.removeLast();
+                    break;
+                case Opcodes.DUPLICATE:
+                    result = bits.peekLast();
+                    break;
+                case Opcodes.SWAP:
+                    int top = bits.removeLast();
+                    int second = bits.removeLast();
+                    bits.addLast(top);
+                    bits.addLast(second);
+                    continue;
+                case Opcodes.POP:
+                    bits.removeLast();
+                    continue;
+                case Opcodes.ROLL:
+                    bits.addFirst(bits.removeLast());
+                    continue;
+                case Opcodes.ENDIF:
+                case Opcodes.STARTLOOP:
+                    continue;
+                default:
+                    return new int[]{-1, 0, 0, 0};
+            }
+            if(result >= Long.SIZE){
+                return new int[]{-1, 0, 0, 0};
+            }
+            bits.addLast(result);
+            peak = Math.max(peak, bits.size());
+        }
+        return new int[]{-1, 0, 0, 0};
+    }
+
+    //The number of values an instruction needs on the stack, which it checks for before doing anything else.
+    //IF and ASSIGNMENT only look at the top-most value, so they need one, even though they don't take it.
+    private static int getArguments(int opcode){
+        switch(opcode){
+            case Opcodes.ADD:
+            case Opcodes.SUBTRACT:
+            case Opcodes.MULTIPLY:
+            case Opcodes.DIVIDE:
+            case Opcodes.SWAP:
+                return 2;
+            case Opcodes.OUTPUT:
+            case Opcodes.POP:
+            case Opcodes.DUPLICATE:
+            case Opcodes.ROLL:
+            case Opcodes.ASSIGNMENT:
+            case Opcodes.IF:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    //How much an instruction which always has the same effect changes the size of the frame by.
+    private static int getEffect(int opcode){
+        switch(opcode){
+            case Opcodes.TWO:
+            case Opcodes.THREE:
+            case Opcodes.SIZE:
+            case Opcodes.DUPLICATE:
+                return 1;
+            case Opcodes.ADD:
+            case Opcodes.SUBTRACT:
+            case Opcodes.MULTIPLY:
+            case Opcodes.DIVIDE:
+            case Opcodes.OUTPUT:
+            case Opcodes.POP:
+                return -1;
+            default:
+                return 0;
+        }
+    }
+
+    private static int grow(int high, int by){
+        return high == UNBOUNDED ? UNBOUNDED : high + by;
+    }
+
+    //The verifier assumes nothing is overridden, so overridable instructions count as their builtin.
+    private static int opcode(int[] opcodes, int idx){
+        return opcodes[idx] < 0 ? ~opcodes[idx] : opcodes[idx];
+    }
+
+    //The bounds of the frame before each instruction, with the end of the program as one more. A lower bound of -1
+    //means the instruction is never reached.
+    private static final class Bounds {
+        private final int[] lows;
+        private final int[] highs;
+        private final int[] changes;
+        private final boolean[] queued;
+        private final Deque<Integer> worklist = new ArrayDeque<>();
+
+        private Bounds(int size){
+            lows = new int[size];
+            highs = new int[size];
+            changes = new int[size];
+            queued = new boolean[size];
+            Arrays.fill(lows, -1);
+        }
+
+        //Widen the bounds before an instruction to cover a path reaching it, and follow it again if they changed.
+        private void flow(int idx, int low, int high){
+            if(lows[idx] >= 0){
+                int newLow = Math.min(lows[idx], low);
+                int newHigh = Math.max(highs[idx], high);
+                if(newLow == lows[idx] && newHigh == highs[idx]){
+                    return;
+                }
+                if(++changes[idx] > MAX_CHANGES){
+                    newLow = newLow == lows[idx] ? newLow : 0;
+                    newHigh = newHigh == highs[idx] ? newHigh : UNBOUNDED;
+                }
+                low = newLow;
+                high = newHigh;
+            }
+            lows[idx] = low;
+            highs[idx] = high;
+            //The end of the program has nothing to follow.
+            if(idx < queued.length - 1 && !queued[idx]){
+                queued[idx] = true;
+                worklist.push(idx);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package lucbui.rayscode.compiler;
+
+import lucbui.rayscode.lexer.RayscodeLexer;
+import lucbui.rayscode.token.Rayscode;
+import lucbui.rayscode.token.RayscodeFunction;
+import lucbui.rayscode.token.RayscodeFunctionMetadata;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the sequences of instructions which come up most often in a corpus of raysCode, to see which are worth
+ * fusing into a superinstruction. Run it from the command line; the report is printed to STD:OUT.
+ *
+ * Arguments are a file with one program per line, the longest sequence to look for, and the number of sequences to
+ * report. Only the file is required.
+ *
+ * Sequences never run through a control structure, since execution can jump there, but can end with one. For each
+ * sequence, the report shows how often PeepholeOptimizer already runs the whole thing as one shortcut.
+ */
+public class SuperinstructionMiner {
+
+    public static void main(String... args) throws IOException {
+        if(args.length == 0){
+            System.out.println("Usage: SuperinstructionMiner <file> [longest sequence] [sequences to report]");
+            return;
+        }
+        int longest = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int report = args.length > 2 ? Integer.parseInt(args[2]) : 25;
+        Map<String, int[]> sequences = new HashMap<>();
+        int programs = 0;
+        int instructions = 0;
+        for(String line : Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8)){
+            if(line.trim().isEmpty()){
+                continue;
+            }
+            RayscodeProgram program;
+            try {
+                program = RayscodeCompiler.compile(lex(line));
+            } catch (RuntimeException ex){
+                //Code which doesn't lex or compile never runs, so it doesn't count.
+                continue;
+            }
+            programs++;
+            instructions += program.size();
+            count(program, longest, sequences);
+        }
+        System.out.println("Sequences of 2 to " + longest + " instructions, in " + programs + " programs (" + instructions + " instructions)");
+        System.out.printf("  %8s %7s %7s  %s%n", "count", "share", "fused", "sequence");
+        int totalInstructions = Math.max(instructions, 1);
+        sequences.entrySet().stream()
+                .sorted((one, two) -> Integer.compare(two.getValue()[0], one.getValue()[0]))
+                .limit(report)
+                .forEach(entry -> System.out.printf("  %8d %6.1f%% %6.1f%%  %s%n",
+                        entry.getValue()[0],
+                        100.0 * entry.getValue()[0] / totalInstructions,
+                        100.0 * entry.getValue()[1] / entry.getValue()[0],
+                        entry.getKey()));
+    }
+
+    //Count every sequence in a program: how often it appears, and how often a shortcut covers all of it.
+    private static void count(RayscodeProgram program, int longest, Map<String, int[]> sequences){
+        for(int start = 0; start < program.size(); start++){
+            StringBuilder sequence = new StringBuilder(name(program, start));
+            for(int end = start + 1; end < program.size() && end - start < longest; end++){
+                if(isControl(program, end - 1)){
+                    break;
+                }
+                sequence.append(' ').append(name(program, end));
+                int[] counts = sequences.computeIfAbsent(sequence.toString(), key -> new int[2]);
+                counts[0]++;
+                Shortcut shortcut = program.getShortcut(start);
+                if(shortcut != null && shortcut.getEnd() > end){
+                    counts[1]++;
+                }
+            }
+        }
+    }
+
+    private static String name(RayscodeProgram program, int index){
+        RayscodeFunction function = program.getCode().get(index).getFunction();
+        return function instanceof Rayscode ? function.toString() : "EXECUTE";
+    }
+
+    private static boolean isControl(RayscodeProgram program, int index){
+        int opcode = program.getOpcode(index);
+        switch(opcode < 0 ? ~opcode : opcode){
+            case Opcodes.IF:
+            case Opcodes.ELSE:
+            case Opcodes.ENDIF:
+            case Opcodes.STARTLOOP:
+            case Opcodes.ENDLOOP:
+            case Opcodes.STARTFUNC:
+            case Opcodes.PARAM:
+            case Opcodes.ENDFUNC:
+            case Opcodes.METHOD:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static List<RayscodeFunctionMetadata> lex(String codeString) throws IOException {
+        RayscodeLexer lexer = new RayscodeLexer(new StringReader(codeString));
+        List<RayscodeFunctionMetadata> code = new ArrayList<>();
+        RayscodeFunctionMetadata token;
+        while((token = lexer.nextToken()) != null){
+            code.add(token);
+        }
+        return code;
+    }
+}
@@ -0,0 +1,84 @@
+package lucbui.rayscode.compiler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Assigns every variable and method name in a program a slot number, so evaluators can keep their values in arrays
+ * instead of looking names up in a map.
+ *
+ * A table is never modified once built. Extending a table makes a new one, where every existing name keeps its slot,
+ * so values stored against a table can be copied as-is into an evaluator using an extension of it.
+ */
+public class SymbolTable {
+
+    /**
+     * A table with no names in it.
+     */
+    public static final SymbolTable EMPTY = new SymbolTable(Collections.emptyMap(), Collections.emptyList());
+
+    private final Map<String, Integer> slots;
+    private final List<String> names;
+
+    private SymbolTable(Map<String, Integer> slots, List<String> names) {
+        this.slots = slots;
+        this.names = names;
+    }
+
+    /**
+     * Create a table containing every name in this one, plus any new names.
+     * @param newNames The names to add.
+     * @return The extended table, or this table if it already contains every name.
+     */
+    SymbolTable extend(Collection<String> newNames){
+        Set<String> missing = new LinkedHashSet<>(newNames);
+        missing.removeAll(slots.keySet());
+        if(missing.isEmpty()){
+            return this;
+        }
+        Map<String, Integer> extendedSlots = new HashMap<>(slots);
+        List<String> extendedNames = new ArrayList<>(names);
+        for(String name : missing){
+            extendedSlots.put(name, extendedNames.size());
+            extendedNames.add(name);
+        }
+        return new SymbolTable(extendedSlots, Collections.unmodifiableList(extendedNames));
+    }
+
+    /**
+     * Get the slot of a name.
+     * @param name The name to look up.
+     * @return The slot, or -1 if the name isn't in this table.
+     */
+    public int getSlot(String name){
+        return slots.getOrDefault(name, -1);
+    }
+
+    /**
+     * Get the name in a slot.
+     * @param slot The slot to look up.
+     * @return The name.
+     */
+    public String getName(int slot){
+        return names.get(slot);
+    }
+
+    /**
+     * Get the number of slots in this table.
+     * @return The number of slots.
+     */
+    public int size(){
+        return names.size();
+    }
+
+    @Override
+    public String toString(){
+        return names.toString();
+    }
+}
@@ -0,0 +1,526 @@
+package lucbui.rayscode.evaluator;
+
+import lucbui.rayscode.compiler.Opcodes;
+import lucbui.rayscode.compiler.RayscodeProgram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles RayscodePrograms into JVM classes implementing CompiledCode.
+ *
+ * Every instruction becomes a call to CompiledInstructions, and every jump becomes a JVM branch, so loops in raysCode
+ * are loops in the compiled class, which the JVM can compile into machine code like any other. The method starts with
+ * a switch over every instruction, so it can be resumed from wherever it left off after a function call, input, or yield.
+ *
+ * Code can also be specialized, on the assumption none of the program's builtin instructions are overridden by a
+ * method, which skips checking for one before every instruction, and takes the program's shortcuts. Specialized code
+ * returns after declaring a function, so whoever runs it can check the assumption still holds.
+ *
+ * The classes are written as Java 5 class files, which don't need the stack maps later versions do, and each is
+ * loaded by a class loader of its own, so it can be unloaded once its program is no longer used.
+ */
+final class BytecodeCompiler {
+
+    /**
+     * The largest program which will be compiled. Anything larger is likely to overflow the JVM's limits on the size
+     * of a method.
+     */
+    static final int MAX_INSTRUCTIONS = 800;
+
+    private static final String CODE = "lucbui/rayscode/evaluator/CompiledCode";
+    private static final String INSTRUCTIONS = "lucbui/rayscode/evaluator/CompiledInstructions";
+    private static final String EVALUATOR = "Llucbui/rayscode/evaluator/RayscodeEvaluator;";
+    private static final String RUN = "(" + EVALUATOR + "I)I";
+
+    private static final Map<RayscodeProgram, Optional<CompiledCode>> COMPILED = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final Map<RayscodeProgram, Optional<CompiledCode>> SPECIALIZED = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicInteger CLASS_COUNT = new AtomicInteger();
+
+    private BytecodeCompiler(){
+        //Static methods only.
+    }
+
+    /**
+     * Get the compiled code for a program, compiling it the first time it's needed.
+     * @param program The program to compile.
+     * @return The compiled code, or null if the program is too large to be compiled.
+     */
+    static CompiledCode compile(RayscodeProgram program){
+        return compile(COMPILED, program, false);
+    }
+
+    /**
+     * Get the specialized code for a program, compiling it the first time it's needed.
+     * This may only be run while none of the program's builtin instructions are overridden.
+     * @param program The program to compile.
+     * @return The specialized code, or null if the program is too large to be compiled.
+     * @see RayscodeProgram#isAnyBuiltinOverridden(java.util.function.IntPredicate)
+     */
+    static CompiledCode compileSpecialized(RayscodeProgram program){
+        return compile(SPECIALIZED, program, true);
+    }
+
+    //The code is generated and loaded without holding the cache's lock, so compiling one program doesn't hold up every
+    //other thread looking up another. Two threads compiling the same program could both compile it, but only the
+    //first to finish is kept, so every thread runs the same code.
+    private static CompiledCode compile(Map<RayscodeProgram, Optional<CompiledCode>> cache, RayscodeProgram program, boolean specialized){
+        Optional<CompiledCode> code = cache.get(program);
+        if(code == null){
+            code = load(program, specialized);
+            Optional<CompiledCode> raced = cache.putIfAbsent(program, code);
+            if(raced != null){
+                code = raced;
+            }
+        }
+        return code.orElse(null);
+    }
+
+    private static Optional<CompiledCode> load(RayscodeProgram program, boolean specialized){
+        if(program.size() > MAX_INSTRUCTIONS){
+            return Optional.empty();
+        }
+        String name = "lucbui/rayscode/evaluator/CompiledProgram" + CLASS_COUNT.incrementAndGet();
+        MethodWriter run = new MethodWriter(program, specialized).write();
+        if(!run.fits()){
+            return Optional.empty();
+        }
+        byte[] classFile = new ClassFile(name).write(run);
+        try {
+            Class<?> compiledClass = new CodeLoader().define(name.replace('/', '.'), classFile);
+            return Optional.of((CompiledCode) compiledClass.getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Unable to load compiled code", ex);
+        }
+    }
+
+    private static final class CodeLoader extends ClassLoader {
+        private CodeLoader(){
+            super(BytecodeCompiler.class.getClassLoader());
+        }
+
+        private Class<?> define(String name, byte[] classFile){
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+
+    //Writes the body of CompiledCode.run for a program.
+    //Locals: 0 is the compiled code, 1 is the evaluator, and 2 is the index to start from.
+    private static final class MethodWriter {
+        private static final int ICONST_0 = 0x03;
+        private static final int BIPUSH = 0x10;
+        private static final int SIPUSH = 0x11;
+        private static final int ALOAD_1 = 0x2b;
+        private static final int ILOAD_2 = 0x1c;
+        private static final int POP = 0x57;
+        private static final int DUP = 0x59;
+        private static final int IFEQ = 0x99;
+        private static final int IFNE = 0x9a;
+        private static final int IFLT = 0x9b;
+        private static final int GOTO = 0xa7;
+        private static final int TABLESWITCH = 0xaa;
+        private static final int IRETURN = 0xac;
+        private static final int INVOKESTATIC = 0xb8;
+
+        private final RayscodeProgram program;
+        private final boolean specialized;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        //Labels 0 to size are the start of each instruction, with size being the end of the program.
+        //Any more are made as needed.
+        private final List<Integer> labels = new ArrayList<>();
+        //Branches to fill in once every label is known: the position of the branch instruction, and its label.
+        private final List<int[]> branches = new ArrayList<>();
+        private final ConstantPool constants = new ConstantPool();
+
+        private MethodWriter(RayscodeProgram program, boolean specialized){
+            this.program = program;
+            this.specialized = specialized;
+            for(int idx = 0; idx <= program.size(); idx++){
+                labels.add(-1);
+            }
+        }
+
+        private MethodWriter write(){
+            writeSwitch();
+            for(int idx = 0; idx < program.size(); idx++){
+                mark(idx);
+                writeInstruction(idx);
+            }
+            mark(program.size());
+            pushInt(program.size());
+            code.write(IRETURN);
+            return this;
+        }
+
+        //Jump to the instruction the method was asked to start from.
+        private void writeSwitch(){
+            if(program.size() == 0){
+                return;
+            }
+            int start = code.size();
+            code.write(ILOAD_2);
+            code.write(TABLESWITCH);
+            while(code.size() % 4 != 0){
+                code.write(0);
+            }
+            //Offsets are relative to the tableswitch itself, so they're filled in with the branches.
+            switchBranch(start + 1, program.size());
+            writeInt(0);
+            writeInt(program.size() - 1);
+            for(int idx = 0; idx < program.size(); idx++){
+                switchBranch(start + 1, idx);
+            }
+        }
+
+        private void writeInstruction(int idx){
+            int opcode = program.getOpcode(idx);
+            boolean overridable = opcode < 0;
+            if(overridable){
+                opcode = ~opcode;
+            }
+            if(opcode == Opcodes.VARIABLE || opcode == Opcodes.EXECUTE){
+                //VARIABLE can run a method, and anything else isn't known, so both are run the slow way.
+                writeInvoke(idx);
+                return;
+            }
+            if(specialized && program.getShortcut(idx) != null && !program.getShortcut(idx).isJump()){
+                //Nothing is overridden, so the instructions can be skipped if the shortcut runs. Shortcuts which jump
+                //are left out; jumps are already JVM branches, so there's nothing to gain.
+                code.write(ALOAD_1);
+                pushInt(idx);
+                invoke("shortcut", "(" + EVALUATOR + "I)Z");
+                branch(IFNE, program.getShortcut(idx).getEnd());
+            }
+            if(overridable && !specialized){
+                //Check for a method first, and run the instruction the slow way if there is one.
+                int plain = newLabel();
+                code.write(ALOAD_1);
+                pushInt(program.getMethodSlot(idx));
+                invoke("isOverridden", "(" + EVALUATOR + "I)Z");
+                branch(IFEQ, plain);
+                writeInvoke(idx);
+                branch(GOTO, idx + 1);
+                mark(plain);
+            }
+            switch(opcode){
+                case Opcodes.TWO: writePush(2); break;
+                case Opcodes.THREE: writePush(3); break;
+                case Opcodes.SIZE:
+                    code.write(ALOAD_1);
+                    invoke("size", "(" + EVALUATOR + ")V");
+                    break;
+                case Opcodes.ADD: writeCall("add", idx); break;
+                case Opcodes.SUBTRACT: writeCall("subtract", idx); break;
+                case Opcodes.MULTIPLY: writeCall("multiply", idx); break;
+                case Opcodes.DIVIDE: writeCall("divide", idx); break;
+                case Opcodes.OUTPUT: writeCall("output", idx); break;
+                case Opcodes.SWAP: writeCall("swap", idx); break;
+                case Opcodes.POP: writeCall("pop", idx); break;
+                case Opcodes.DUPLICATE: writeCall("duplicate", idx); break;
+                case Opcodes.ROLL: writeCall("roll", idx); break;
+                case Opcodes.ASSIGNMENT: writeCall("assign", idx); break;
+                case Opcodes.INPUT:
+                    //If the evaluator has to wait, return here so the instruction is run again once there's input.
+                    code.write(ALOAD_1);
+                    pushInt(idx);
+                    invoke("input", "(" + EVALUATOR + "I)Z");
+                    branch(IFEQ, idx + 1);
+                    pushInt(idx);
+                    code.write(IRETURN);
+                    break;
+                case Opcodes.IF:
+                    code.write(ALOAD_1);
+                    pushInt(idx);
+                    invoke("branch", "(" + EVALUATOR + "I)Z");
+                    if(program.getOperand(idx) < 0){
+                        //Without a target, branch never says to jump.
+                        code.write(POP);
+                    } else {
+                        branch(IFNE, program.getOperand(idx) + 1);
+                    }
+                    break;
+                case Opcodes.ELSE:
+                    if(program.getOperand(idx) < 0){
+                        writeCall("fail", idx);
+                    } else {
+                        branch(GOTO, program.getOperand(idx) + 1);
+                    }
+                    break;
+                case Opcodes.ENDLOOP:
+                    if(program.getOperand(idx) < 0){
+                        writeCall("fail", idx);
+                    } else {
+                        //If the evaluator yields, return to the start of the loop, to carry on from there next time.
+                        code.write(ALOAD_1);
+                        invoke("loop", "(" + EVALUATOR + ")Z");
+                        branch(IFEQ, program.getOperand(idx) + 1);
+                        pushInt(program.getOperand(idx) + 1);
+                        code.write(IRETURN);
+                    }
+                    break;
+                case Opcodes.STARTFUNC:
+                    writeCall("declare", idx);
+                    if(program.getJumpTarget(idx) >= 0 && specialized){
+                        //The function could override a builtin, so the code may not be valid anymore.
+                        pushInt(program.getJumpTarget(idx) + 1);
+                        code.write(IRETURN);
+                    } else if(program.getJumpTarget(idx) >= 0){
+                        branch(GOTO, program.getJumpTarget(idx) + 1);
+                    }
+                    break;
+                case Opcodes.PARAM:
+                case Opcodes.ENDFUNC:
+                    writeCall("fail", idx);
+                    break;
+                default:
+                    //ENDIF, METHOD, and STARTLOOP do nothing.
+                    break;
+            }
+        }
+
+        private void writePush(int value){
+            code.write(ALOAD_1);
+            pushInt(value);
+            invoke("push", "(" + EVALUATOR + "I)V");
+        }
+
+        private void writeCall(String name, int idx){
+            code.write(ALOAD_1);
+            pushInt(idx);
+            invoke(name, "(" + EVALUATOR + "I)V");
+        }
+
+        //Run an instruction through CompiledInstructions.invoke, and return if it says to.
+        private void writeInvoke(int idx){
+            int carryOn = newLabel();
+            code.write(ALOAD_1);
+            pushInt(idx);
+            invoke("invoke", "(" + EVALUATOR + "I)I");
+            code.write(DUP);
+            branch(IFLT, carryOn);
+            code.write(IRETURN);
+            mark(carryOn);
+            code.write(POP);
+        }
+
+        private void invoke(String name, String descriptor){
+            code.write(INVOKESTATIC);
+            writeShort(constants.method(INSTRUCTIONS, name, descriptor));
+        }
+
+        private void pushInt(int value){
+            if(value >= -1 && value <= 5){
+                code.write(ICONST_0 + value);
+            } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+                code.write(BIPUSH);
+                code.write(value);
+            } else {
+                code.write(SIPUSH);
+                writeShort(value);
+            }
+        }
+
+        private int newLabel(){
+            labels.add(-1);
+            return labels.size() - 1;
+        }
+
+        private void mark(int label){
+            labels.set(label, code.size());
+        }
+
+        private void branch(int instruction, int label){
+            branches.add(new int[]{code.size(), label, 2});
+            code.write(instruction);
+            writeShort(0);
+        }
+
+        //A four byte offset in a switch, relative to the switch instruction.
+        private void switchBranch(int switchPosition, int label){
+            branches.add(new int[]{switchPosition, label, 4, code.size()});
+            writeInt(0);
+        }
+
+        private void writeShort(int value){
+            code.write(value >> 8);
+            code.write(value);
+        }
+
+        private void writeInt(int value){
+            writeShort(value >> 16);
+            writeShort(value);
+        }
+
+        //Check every branch is short enough to fit in its instruction. Methods can't be larger than this anyway.
+        private boolean fits(){
+            return code.size() <= Short.MAX_VALUE;
+        }
+
+        //Fill in every branch, now every label is known.
+        private byte[] toByteArray(){
+            byte[] bytes = code.toByteArray();
+            for(int[] branch : branches){
+                int offset = labels.get(branch[1]) - branch[0];
+                if(branch[2] == 2){
+                    bytes[branch[0] + 1] = (byte) (offset >> 8);
+                    bytes[branch[0] + 2] = (byte) offset;
+                } else {
+                    int at = branch[3];
+                    bytes[at] = (byte) (offset >> 24);
+                    bytes[at + 1] = (byte) (offset >> 16);
+                    bytes[at + 2] = (byte) (offset >> 8);
+                    bytes[at + 3] = (byte) offset;
+                }
+            }
+            return bytes;
+        }
+    }
+
+    //Writes a class implementing CompiledCode, with a constructor and the run method.
+    private static final class ClassFile {
+        private static final int ACC_PUBLIC = 0x0001;
+        private static final int ACC_FINAL = 0x0010;
+        private static final int ACC_SUPER = 0x0020;
+        //Java 5, the last version without stack map frames.
+        private static final int VERSION = 49;
+
+        private final String name;
+
+        private ClassFile(String name){
+            this.name = name;
+        }
+
+        private byte[] write(MethodWriter run){
+            ConstantPool constants = run.constants;
+            byte[] runCode = run.toByteArray();
+            int thisClass = constants.classRef(name);
+            int superClass = constants.classRef("java/lang/Object");
+            int codeInterface = constants.classRef(CODE);
+            int objectInit = constants.method("java/lang/Object", "<init>", "()V");
+            int initName = constants.utf8("<init>");
+            int initDescriptor = constants.utf8("()V");
+            int runName = constants.utf8("run");
+            int runDescriptor = constants.utf8(RUN);
+            int codeAttribute = constants.utf8("Code");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try(DataOutputStream out = new DataOutputStream(bytes)){
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(VERSION);
+                constants.write(out);
+                out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(codeInterface);
+                out.writeShort(0);
+                out.writeShort(2);
+
+                //aload_0, invokespecial Object.<init>, return
+                byte[] initCode = {0x2a, (byte) 0xb7, (byte) (objectInit >> 8), (byte) objectInit, (byte) 0xb1};
+                writeMethod(out, initName, initDescriptor, codeAttribute, 1, 1, initCode);
+                writeMethod(out, runName, runDescriptor, codeAttribute, 3, 3, runCode);
+
+                out.writeShort(0);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeAttribute,
+                                        int maxStack, int maxLocals, byte[] code) throws IOException {
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+    }
+
+    //The constants a class file refers to by index.
+    private static final class ConstantPool {
+        private static final int UTF8 = 1;
+        private static final int CLASS = 7;
+        private static final int METHOD_REF = 10;
+        private static final int NAME_AND_TYPE = 12;
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<List<Object>, Integer> indexes = new HashMap<>();
+        private int count = 1;
+
+        private int utf8(String value){
+            return add(Arrays.asList(UTF8, value), () -> {
+                out.writeByte(UTF8);
+                out.writeUTF(value);
+            });
+        }
+
+        private int classRef(String name){
+            int nameIndex = utf8(name);
+            return add(Arrays.asList(CLASS, name), () -> {
+                out.writeByte(CLASS);
+                out.writeShort(nameIndex);
+            });
+        }
+
+        private int method(String owner, String name, String descriptor){
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = add(Arrays.asList(NAME_AND_TYPE, name, descriptor), () -> {
+                out.writeByte(NAME_AND_TYPE);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+            return add(Arrays.asList(METHOD_REF, owner, name, descriptor), () -> {
+                out.writeByte(METHOD_REF);
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private int add(List<Object> key, Entry entry){
+            Integer index = indexes.get(key);
+            if(index == null){
+                try {
+                    entry.write();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                index = count++;
+                indexes.put(key, index);
+            }
+            return index;
+        }
+
+        private void write(DataOutputStream classOut) throws IOException {
+            classOut.writeShort(count);
+            classOut.write(bytes.toByteArray());
+        }
+
+        private interface Entry {
+            void write() throws IOException;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package lucbui.rayscode.evaluator;
+
+/**
+ * A RayscodeProgram which has been compiled into a JVM class by BytecodeCompiler.
+ *
+ * This has to be public, so classes in their own class loader can implement it, but it should only be run by
+ * RayscodeEvaluator.
+ */
+public interface CompiledCode {
+
+    /**
+     * Run the program, from some instruction, until it finishes, waits for input, or calls a function.
+     * @param evaluator The evaluator running the program.
+     * @param index The index of the instruction to start from.
+     * @return The index of the instruction to carry on from later. If the program finished, this is its size.
+     */
+    int run(RayscodeEvaluator evaluator, int index);
+}
@@ -0,0 +1,273 @@
+package lucbui.rayscode.evaluator;
+
+import lucbui.rayscode.compiler.Shortcut;
+import lucbui.rayscode.token.Rayscode;
+import lucbui.rayscode.token.RayscodeFunction;
+import lucbui.rayscode.token.RayscodeFunctionMetadata;
+
+/**
+ * The instructions code compiled by BytecodeCompiler calls.
+ *
+ * Each one runs a single instruction of the program for the evaluator passed in. Anything that can fail is left to
+ * the Rayscode operator, with the evaluator's iterator on the instruction, so errors are reported exactly as they are
+ * when running by token. Instructions check the evaluator's limits once they're done, which also counts them. ELSE,
+ * ENDIF, STARTLOOP and METHOD only mark where to jump, so compiled code doesn't run them, or count them.
+ *
+ * These have to be public, so classes in their own class loader can call them, but they should only be called by
+ * compiled code.
+ */
+public final class CompiledInstructions {
+
+    private CompiledInstructions(){
+        //Static methods only.
+    }
+
+    /**
+     * Check if the instruction with a method slot has been overridden by a method.
+     * @param evaluator The evaluator.
+     * @param slot The method slot.
+     * @return True if there is a method in the slot.
+     */
+    public static boolean isOverridden(RayscodeEvaluator evaluator, int slot){
+        return evaluator.hasMethod(slot);
+    }
+
+    /**
+     * Run an instruction by calling its function, or the method overriding it.
+     * Any instruction can be run this way, including ones which wait for input, call functions, or jump.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     * @return -1 to carry on with the next instruction, or the index compiled code should return, if it can't.
+     */
+    public static int invoke(RayscodeEvaluator evaluator, int index){
+        EvaluatorIterator<RayscodeFunctionMetadata> iterator = evaluator.getIterator();
+        iterator.jumpTo(index);
+        RayscodeFunction function = iterator.get().getFunction();
+        int methodSlot = evaluator.getProgram().getMethodSlot(index);
+        if(methodSlot >= 0 && evaluator.hasMethod(methodSlot)){
+            function = evaluator.getMethod(methodSlot).getFunction();
+        }
+        function.execute(evaluator.getStack(), iterator, evaluator);
+        if(evaluator.isPaused()){
+            return index;
+        }
+        evaluator.checkLimits();
+        int next = iterator.getCurrentIndex() + 1;
+        return evaluator.isCalling() || next != index + 1 ? next : -1;
+    }
+
+    /**
+     * Push a literal.
+     * @param evaluator The evaluator.
+     * @param value The value to push.
+     */
+    public static void push(RayscodeEvaluator evaluator, int value){
+        evaluator.getStack().push(value);
+        evaluator.checkLimits();
+    }
+
+    /**
+     * Run SIZE.
+     * @param evaluator The evaluator.
+     */
+    public static void size(RayscodeEvaluator evaluator){
+        RayscodeStack stack = evaluator.getStack();
+        stack.push(stack.size());
+        evaluator.checkLimits();
+    }
+
+    /**
+     * Run ADD.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     */
+    public static void add(RayscodeEvaluator evaluator, int index){
+        evaluator.getIterator().jumpTo(index);
+        Rayscode.ADD.execute(evaluator.getStack(), evaluator.getIterator(), evaluator);
+        evaluator.checkLimits();
+    }
+
+    /**
+     * Run SUBTRACT.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     */
+    public static void subtract(RayscodeEvaluator evaluator, int index){
+        evaluator.getIterator().jumpTo(index);
+        Rayscode.SUBTRACT.execute(evaluator.getStack(), evaluator.getIterator(), evaluator);
+        evaluator.checkLimits();
+    }
+
+    /**
+     * Run MULTIPLY.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     */
+    public static void multiply(RayscodeEvaluator evaluator, int index){
+        evaluator.getIterator().jumpTo(index);
+        Rayscode.MULTIPLY.execute(evaluator.getStack(), evaluator.getIterator(), evaluator);
+        evaluator.checkLimits();
+    }
+
+    /**
+     * Run DIVIDE.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     */
+    public static void divide(RayscodeEvaluator evaluator, int index){
+        evaluator.getIterator().jumpTo(index);
+        Rayscode.DIVIDE.execute(evaluator.getStack(), evaluator.getIterator(), evaluator);
+        evaluator.checkLimits();
+    }
+
+    /**
+     * Run OUTPUT.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     */
+    public static void output(RayscodeEvaluator evaluator, int index){
+        evaluator.getIterator().jumpTo(index);
+        Rayscode.OUTPUT.execute(evaluator.getStack(), evaluator.getIterator(), evaluator);
+        evaluator.checkLimits();
+    }
+
+    /**
+     * Run SWAP.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     */
+    public static void swap(RayscodeEvaluator evaluator, int index){
+        evaluator.getIterator().jumpTo(index);
+        Rayscode.SWAP.execute(evaluator.getStack(), evaluator.getIterator(), evaluator);
+        evaluator.checkLimits();
+    }
+
+    /**
+     * Run POP.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     */
+    public static void pop(RayscodeEvaluator evaluator, int index){
+        evaluator.getIterator().jumpTo(index);
+        Rayscode.POP.execute(evaluator.getStack(), evaluator.getIterator(), evaluator);
+        evaluator.checkLimits();
+    }
+
+    /**
+     * Run DUPLICATE.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     */
+    public static void duplicate(RayscodeEvaluator evaluator, int index){
+        evaluator.getIterator().jumpTo(index);
+        Rayscode.DUPLICATE.execute(evaluator.getStack(), evaluator.getIterator(), evaluator);
+        evaluator.checkLimits();
+    }
+
+    /**
+     * Run ROLL.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     */
+    public static void roll(RayscodeEvaluator evaluator, int index){
+        evaluator.getIterator().jumpTo(index);
+        Rayscode.ROLL.execute(evaluator.getStack(), evaluator.getIterator(), evaluator);
+        evaluator.checkLimits();
+    }
+
+    /**
+     * Run ASSIGNMENT.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     */
+    public static void assign(RayscodeEvaluator evaluator, int index){
+        evaluator.getIterator().jumpTo(index);
+        Rayscode.ASSIGNMENT.execute(evaluator.getStack(), evaluator.getIterator(), evaluator);
+        evaluator.checkLimits();
+    }
+
+    /**
+     * Run INPUT.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     * @return True if the evaluator is now waiting for input.
+     */
+    public static boolean input(RayscodeEvaluator evaluator, int index){
+        evaluator.getIterator().jumpTo(index);
+        Rayscode.INPUT.execute(evaluator.getStack(), evaluator.getIterator(), evaluator);
+        if(evaluator.isPaused()){
+            return true;
+        }
+        evaluator.checkLimits();
+        return false;
+    }
+
+    /**
+     * Run IF.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     * @return True if execution jumps to the IF's ELSE or ENDIF.
+     */
+    public static boolean branch(RayscodeEvaluator evaluator, int index){
+        RayscodeStack stack = evaluator.getStack();
+        boolean jump = false;
+        if(stack.isEmpty() || evaluator.getProgram().getOperand(index) < 0){
+            //The operator either throws, or carries on to the next instruction.
+            evaluator.getIterator().jumpTo(index);
+            Rayscode.IF.execute(stack, evaluator.getIterator(), evaluator);
+        } else {
+            jump = stack.peekSignum() > 0;
+        }
+        evaluator.checkLimits(1, false);
+        return jump;
+    }
+
+    /**
+     * Run STARTFUNC. Compiled code skips over the function's body itself.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     */
+    public static void declare(RayscodeEvaluator evaluator, int index){
+        evaluator.getIterator().jumpTo(index);
+        Rayscode.STARTFUNC.execute(evaluator.getStack(), evaluator.getIterator(), evaluator);
+        evaluator.checkLimits(1, false);
+    }
+
+    /**
+     * Run the shortcut starting at an instruction, if the stack has what it needs.
+     * This may only be run while none of the program's builtin instructions are overridden, and not for shortcuts
+     * which jump.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     * @return True if the shortcut was run, and compiled code should carry on from its end.
+     */
+    public static boolean shortcut(RayscodeEvaluator evaluator, int index){
+        Shortcut shortcut = evaluator.getProgram().getShortcut(index);
+        if(evaluator.runShortcut(shortcut) < 0){
+            return false;
+        }
+        evaluator.checkLimits(shortcut.getEnd() - index, true);
+        return true;
+    }
+
+    /**
+     * Run an instruction which can only fail, such as an ELSE with no ENDIF, or an ENDLOOP which isn't safe.
+     * @param evaluator The evaluator.
+     * @param index The index of the instruction.
+     */
+    public static void fail(RayscodeEvaluator evaluator, int index){
+        EvaluatorIterator<RayscodeFunctionMetadata> iterator = evaluator.getIterator();
+        iterator.jumpTo(index);
+        iterator.get().getFunction().execute(evaluator.getStack(), iterator, evaluator);
+    }
+
+    /**
+     * Check the evaluator's limits, on the way back to the start of a loop.
+     * @param evaluator The evaluator.
+     * @return True if the evaluator has used up its slice of instructions, and compiled code should return.
+     */
+    public static boolean loop(RayscodeEvaluator evaluator){
+        evaluator.checkLimits();
+        return evaluator.isYielding();
+    }
+}
@@ -0,0 +1,154 @@
+package lucbui.rayscode.evaluator;
+
+import java.util.Arrays;
+import java.util.function.ToLongFunction;
+
+/**
+ * Slot values shared between an evaluator and every function it calls.
+ *
+ * Rather than giving each function call its own copy of every value, there is only one array, and each call is a
+ * scope on top of it. The first time a scope changes a slot, the old value is saved to a trail. Leaving the scope
+ * puts every saved value back, so anything bound inside a function is forgotten when it returns, while reads
+ * and writes stay simple array accesses, and entering a scope costs nothing.
+ *
+ * Scopes must be left in the opposite order they were entered.
+ *
+ * An environment can also weigh its values, to keep track of roughly how much memory they take up, saved ones included.
+ *
+ * @param <T> The type of value stored.
+ */
+class Environment<T> {
+
+    private Object[] values;
+    //The depth of the scope which last saved each slot. Slots are saved at most once per scope.
+    private int[] savedBy;
+    private int depth;
+
+    //Saved values, in the order they were saved.
+    private int[] trailSlots;
+    private Object[] trailValues;
+    private int[] trailSavedBy;
+    private int trailSize;
+
+    //Weighs each value in bytes, or null if they aren't weighed.
+    private final ToLongFunction<? super T> weigher;
+    private long memory;
+
+    /**
+     * Create an environment.
+     * @param slots The number of slots to start with.
+     */
+    Environment(int slots){
+        this(slots, null);
+    }
+
+    /**
+     * Create an environment which weighs its values.
+     * @param slots The number of slots to start with.
+     * @param weigher Approximates the memory a value takes up, in bytes, or null to not weigh values.
+     */
+    Environment(int slots, ToLongFunction<? super T> weigher){
+        this.weigher = weigher;
+        values = new Object[slots];
+        savedBy = new int[slots];
+        trailSlots = new int[8];
+        trailValues = new Object[8];
+        trailSavedBy = new int[8];
+    }
+
+    /**
+     * Get the value in a slot.
+     * @param slot The slot.
+     * @return The value, or null if the slot is empty.
+     */
+    @SuppressWarnings("unchecked")
+    T get(int slot){
+        return (T) values[slot];
+    }
+
+    /**
+     * Set the value in a slot, for the current scope.
+     * @param slot The slot.
+     * @param value The value.
+     */
+    void set(int slot, T value){
+        //The outermost scope is never left, so there's nothing to save for it.
+        if(depth > 0 && savedBy[slot] != depth){
+            save(slot);
+            savedBy[slot] = depth;
+        } else {
+            memory -= weigh(values[slot]);
+        }
+        values[slot] = value;
+        memory += weigh(value);
+    }
+
+    /**
+     * Get roughly how much memory the values take up, including those saved to be put back when a scope is left.
+     * @return The number of bytes, or 0 if values aren't weighed.
+     */
+    long getMemory(){
+        return memory;
+    }
+
+    /**
+     * Get the number of slots.
+     * @return The number of slots.
+     */
+    int size(){
+        return values.length;
+    }
+
+    /**
+     * Make sure there are at least some number of slots. New slots are empty.
+     * @param slots The number of slots needed.
+     */
+    void ensureCapacity(int slots){
+        if(slots > values.length){
+            values = Arrays.copyOf(values, slots);
+            savedBy = Arrays.copyOf(savedBy, slots);
+        }
+    }
+
+    /**
+     * Enter a new scope.
+     * @return A marker to pass to exitScope.
+     */
+    int enterScope(){
+        depth++;
+        return trailSize;
+    }
+
+    /**
+     * Leave the current scope, restoring every slot it changed.
+     * @param marker The marker returned when the scope was entered.
+     */
+    void exitScope(int marker){
+        while(trailSize > marker){
+            trailSize--;
+            int slot = trailSlots[trailSize];
+            memory -= weigh(values[slot]);
+            values[slot] = trailValues[trailSize];
+            savedBy[slot] = trailSavedBy[trailSize];
+            trailValues[trailSize] = null;
+        }
+        depth--;
+    }
+
+    @SuppressWarnings("unchecked")
+    private long weigh(Object value){
+        return weigher == null || value == null ? 0 : weigher.applyAsLong((T) value);
+    }
+
+    private void save(int slot){
+        if(trailSize == trailSlots.length){
+            trailSlots = Arrays.copyOf(trailSlots, trailSize << 1);
+            trailValues = Arrays.copyOf(trailValues, trailSize << 1);
+            trailSavedBy = Arrays.copyOf(trailSavedBy, trailSize << 1);
+        }
+        trailSlots[trailSize] = slot;
+        trailValues[trailSize] = values[slot];
+        trailSavedBy[trailSize] = savedBy[slot];
+        trailSize++;
+    }
+}
@@ -0,0 +1,91 @@
+package lucbui.rayscode.evaluator;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * What an evaluation ended up with, once it finished or paused for input.
+ *
+ * This is a snapshot: it's taken on the thread which ran the evaluation, and doesn't change once it's made, even if
+ * the evaluator carries on, so it can be handed to any thread.
+ */
+public final class EvaluationResult {
+
+    private final List<BigInteger> stack;
+    private final String output;
+    private final long instructions;
+    private final long elapsedTime;
+    private final long peakMemory;
+    private final boolean paused;
+
+    //Take a snapshot of an evaluator, with the stack its last call to evaluate() returned.
+    EvaluationResult(RayscodeEvaluator evaluator, RayscodeStack stack){
+        this.stack = stack.toList();
+        this.output = evaluator.getOutputString();
+        this.instructions = evaluator.getInstructionCount();
+        this.elapsedTime = evaluator.getElapsedTime();
+        this.peakMemory = evaluator.getPeakMemory();
+        this.paused = evaluator.isPaused();
+    }
+
+    /**
+     * Get the values left on the stack, from top to bottom.
+     * @return The values, which can't be changed.
+     */
+    public List<BigInteger> getStack(){
+        return stack;
+    }
+
+    /**
+     * Get everything the code has output so far.
+     * @return The output, which is empty if there was none.
+     */
+    public String getOutput(){
+        return output;
+    }
+
+    /**
+     * Get the number of instructions run, over every call to evaluate().
+     * @return The number of instructions.
+     * @see RayscodeEvaluator#getInstructionCount()
+     */
+    public long getInstructionCount(){
+        return instructions;
+    }
+
+    /**
+     * Get the time spent running the evaluation, since it last started or was resumed from input.
+     * @return The time, in milliseconds.
+     * @see RayscodeEvaluator#getElapsedTime()
+     */
+    public long getElapsedTime(){
+        return elapsedTime;
+    }
+
+    /**
+     * Get roughly the most memory the stack and variables took up.
+     * @return The peak memory, in bytes.
+     * @see RayscodeEvaluator#getPeakMemory()
+     */
+    public long getPeakMemory(){
+        return peakMemory;
+    }
+
+    /**
+     * Check if the evaluation paused for input, rather than finishing. It carries on once it's given some, with
+     * RayscodeEvaluator.resumeAsync().
+     * @return True if the evaluation is waiting for input.
+     */
+    public boolean isPaused(){
+        return paused;
+    }
+
+    /**
+     * Lists the stack from top to bottom, the same way RayscodeStack does.
+     * @return The stack as a String.
+     */
+    @Override
+    public String toString(){
+        return stack.toString();
+    }
+}
@@ -0,0 +1,245 @@
+package lucbui.rayscode.evaluator;
+
+import lucbui.rayscode.compiler.RayscodeCompiler;
+import lucbui.rayscode.compiler.RayscodeProgram;
+import lucbui.rayscode.lexer.RayscodeLexer;
+import lucbui.rayscode.token.RayscodeFunctionMetadata;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A rough benchmark for the evaluator. Run it from the command line; results are printed to STD:OUT.
+ *
+ * This isn't meant to be precise, just enough to see if a change makes things better or worse.
+ */
+public class EvaluatorBenchmark {
+
+    private static final int WARMUP_RUNS = 20;
+    private static final int MEASURED_RUNS = 20;
+
+    public static void main(String... args) throws IOException {
+        benchmarkLoopOverProgramSize();
+        benchmarkStraightLine("Arithmetic-heavy", "rays2 " + repeat("rays3 raysP rays2 raysB rays3 raysI", 5_000));
+        benchmarkStraightLine("Roll-heavy", repeat("rays2 rays3", 500) + " " + repeat("raysThump raysShock", 10_000));
+        benchmarkStackStructures();
+        benchmarkCallsOverGlobals();
+        benchmarkDeepRecursion();
+        benchmarkRollingRecursion();
+        benchmarkEngines();
+        benchmarkInlining();
+    }
+
+    //The README's raysSquare, called over and over. TOKENS never inlines functions, so it shows what calls used to cost.
+    private static void benchmarkInlining() throws IOException {
+        int calls = 5_000;
+        System.out.println("Calls to a small function (" + calls + " calls)");
+        RayscodeProgram program = RayscodeCompiler.compile(lex("raysH raysSquare raysShy raysE raysB raysZ " +
+                repeat("rays3 raysSquare raysD", calls)));
+        for(RayscodeEvaluator.Engine engine : RayscodeEvaluator.Engine.values()){
+            System.out.printf("  %-8s %10.1f calls/ms%n", engine, calls / time(program, engine));
+        }
+    }
+
+    //The same programs, run by each engine.
+    private static void benchmarkEngines() throws IOException {
+        System.out.println("Engines");
+        RayscodeProgram straightLine = RayscodeCompiler.compile(lex("rays2 " + repeat("rays3 raysP rays2 raysB rays3 raysI", 5_000)));
+        RayscodeProgram loop = RayscodeCompiler.compile(lex(literal(100_000) +
+                " raysC raysShrug raysT rays2 rays3 raysI raysShock raysI rays3 raysShrug rays2 raysFox raysD raysLurk raysFox"));
+        RayscodeProgram calls = RayscodeCompiler.compile(lex(
+                "raysH raysF raysShy raysShrug raysT rays2 rays3 raysI raysShock raysI raysF raysFox raysZ " + literal(100_000) + " raysF"));
+        //Constants built out of 2 and 3, shifts, and instructions which undo each other, which all have shortcuts.
+        RayscodeProgram constants = RayscodeCompiler.compile(lex("rays2 " +
+                repeat("raysE rays3 rays3 raysB rays2 raysP rays2 raysB raysShock raysShock raysE raysD raysD raysD", 2_000)));
+        for(RayscodeEvaluator.Engine engine : RayscodeEvaluator.Engine.values()){
+            System.out.printf("  %-8s straight line: %10.1f instructions/ms, loop: %10.1f iterations/ms, calls: %10.1f calls/ms, constants: %10.1f instructions/ms%n",
+                    engine, straightLine.size() / time(straightLine, engine), 100_000 / time(loop, engine),
+                    100_000 / time(calls, engine), constants.size() / time(constants, engine));
+        }
+    }
+
+    //A function which counts down by recursing, once where the recursive call is a tail call, and once where it isn't.
+    //Neither should overflow the Java stack, and calls per millisecond should stay about the same as the depth grows.
+    private static void benchmarkDeepRecursion() throws IOException {
+        System.out.println("Deep recursion");
+        String tailCall = "raysH raysF raysShy raysShrug raysT rays2 rays3 raysI raysShock raysI raysF raysFox raysZ ";
+        String nonTailCall = "raysH raysF raysShy raysShrug raysT rays2 rays3 raysI raysShock raysI raysF rays2 raysD raysFox raysZ ";
+        for(int calls : new int[]{1_000, 5_000, EvaluatorConfig.DEFAULT.getMaxRecursionDepth() - 1}){
+            double millis = time(RayscodeCompiler.compile(lex(nonTailCall + literal(calls) + " raysF")));
+            System.out.printf("  %6d nested calls: %10.1f calls/ms%n", calls, calls / millis);
+        }
+        for(int calls : new int[]{1_000, 10_000, 100_000}){
+            double millis = time(RayscodeCompiler.compile(lex(tailCall + literal(calls) + " raysF")));
+            System.out.printf("  %6d tail calls: %10.1f calls/ms%n", calls, calls / millis);
+        }
+    }
+
+    //A function which recurses, rolling its whole frame round and round before each call. Each call leaves a value
+    //under the next one's frame, so no frame but the first starts at the bottom of the stack. Rolls per millisecond
+    //should stay about the same however many values are in the frame, since any frame rolls as quickly as the bottom one.
+    private static void benchmarkRollingRecursion() throws IOException {
+        int calls = 100;
+        System.out.println("Rolls in a recursive function (" + calls + " calls)");
+        for(int frameSize : new int[]{10, 100, 1_000}){
+            //Whole turns of the frame, so it ends up back where it started.
+            int rolls = frameSize * Math.max(1_000 / frameSize, 1);
+            String function = "raysH raysF raysShy raysShrug raysT " + repeat("rays2", frameSize - 1) + " " +
+                    repeat("raysThump", rolls) + " " + repeat("raysD", frameSize - 1) +
+                    " rays2 raysShock rays2 rays3 raysI raysShock raysI raysF rays2 raysD raysFox raysZ ";
+            double millis = time(RayscodeCompiler.compile(lex(function + "rays2 " + literal(calls) + " raysF")));
+            System.out.printf("  %6d values in the frame: %10.1f rolls/ms%n", frameSize, (long) calls * rolls / millis);
+        }
+    }
+
+    //A function which recurses 500 times, in programs with more and more global variables defined.
+    //Calls shouldn't get any slower as the number of globals grows.
+    private static void benchmarkCallsOverGlobals() throws IOException {
+        int calls = 500;
+        System.out.println("Recursive calls by number of globals (" + calls + " calls)");
+        for(int globals : new int[]{0, 100, 1_000}){
+            StringBuilder code = new StringBuilder();
+            for(int global = 0; global < globals; global++){
+                code.append("rays2 raysV").append(global).append(" raysLove raysD ");
+            }
+            code.append("raysH raysF raysShy raysShrug raysT rays2 rays3 raysI raysShock raysI raysF raysFox raysZ ")
+                    .append(literal(calls)).append(" raysF");
+            RayscodeProgram program = RayscodeCompiler.compile(lex(code.toString()));
+            double millis = time(program);
+            System.out.printf("  %6d globals: %10.1f calls/ms%n", globals, calls / millis);
+        }
+    }
+
+    //The stack operations raysCode performs, run directly against RayscodeStack, and the LinkedList it replaced.
+    private static void benchmarkStackStructures(){
+        int operations = 1_000_000;
+        BigInteger two = BigInteger.valueOf(2);
+        System.out.println("Stack structures (" + operations + " operations)");
+        for(int run = 0; run <= WARMUP_RUNS; run++){
+            boolean print = run == WARMUP_RUNS;
+
+            long start = System.nanoTime();
+            Deque<BigInteger> linkedList = new LinkedList<>();
+            linkedList.push(two);
+            for(int op = 0; op < operations; op++){
+                linkedList.push(two);
+                linkedList.push(linkedList.pop().add(linkedList.pop()));
+                linkedList.push(linkedList.pop().subtract(two));
+            }
+            report(print, "  LinkedList arithmetic", operations, start);
+
+            start = System.nanoTime();
+            RayscodeStack rayscodeStack = new RayscodeStack(EvaluatorConfig.DEFAULT.getMaxStackSize());
+            rayscodeStack.push(two);
+            for(int op = 0; op < operations; op++){
+                rayscodeStack.push(two);
+                rayscodeStack.push(rayscodeStack.pop().add(rayscodeStack.pop()));
+                rayscodeStack.push(rayscodeStack.pop().subtract(two));
+            }
+            report(print, "  RayscodeStack arithmetic", operations, start);
+
+            start = System.nanoTime();
+            linkedList = new LinkedList<>(Collections.nCopies(1_000, two));
+            for(int op = 0; op < operations; op++){
+                linkedList.addLast(linkedList.pop());
+            }
+            report(print, "  LinkedList roll", operations, start);
+
+            start = System.nanoTime();
+            rayscodeStack = new RayscodeStack(EvaluatorConfig.DEFAULT.getMaxStackSize());
+            for(int element = 0; element < 1_000; element++){
+                rayscodeStack.push(two);
+            }
+            for(int op = 0; op < operations; op++){
+                rayscodeStack.addLast(rayscodeStack.pop());
+            }
+            report(print, "  RayscodeStack roll", operations, start);
+        }
+    }
+
+    private static void report(boolean print, String name, int operations, long start){
+        if(print){
+            System.out.printf("%s: %10.1f operations/ms%n", name, operations / ((System.nanoTime() - start) / 1_000_000.0));
+        }
+    }
+
+    //A long program with no control flow, which is run start to finish.
+    private static void benchmarkStraightLine(String name, String code) throws IOException {
+        RayscodeProgram program = RayscodeCompiler.compile(lex(code));
+        double millis = time(program);
+        System.out.printf("%s (%d instructions): %10.1f instructions/ms%n", name, program.size(), program.size() / millis);
+    }
+
+    //A loop which counts down from 10000. Each iteration skips over an if block full of padding, so when jumps are
+    //resolved ahead of time, the iterations per millisecond should stay the same no matter how much padding there is.
+    private static void benchmarkLoopOverProgramSize() throws IOException {
+        int iterations = 10_000;
+        System.out.println("Loop throughput by program size (" + iterations + " iterations)");
+        for(int padding : new int[]{10, 100, 1_000, 10_000}){
+            String code = literal(iterations) +
+                    " raysC raysShrug raysT rays2 rays3 raysI raysShock raysI" +
+                    " rays3 raysShrug " + repeat("rays2", padding) + " raysFox raysD" +
+                    " raysLurk raysFox";
+            RayscodeProgram program = RayscodeCompiler.compile(lex(code));
+            double millis = time(program);
+            System.out.printf("  %6d instructions: %10.1f iterations/ms%n", program.size(), iterations / millis);
+        }
+    }
+
+    //Runs a program a few times, and returns the average time of a run in milliseconds.
+    private static double time(RayscodeProgram program){
+        return time(program, RayscodeEvaluator.Engine.TOKENS);
+    }
+
+    private static double time(RayscodeProgram program, RayscodeEvaluator.Engine engine){
+        for(int run = 0; run < WARMUP_RUNS; run++){
+            evaluate(program, engine);
+        }
+        long start = System.nanoTime();
+        for(int run = 0; run < MEASURED_RUNS; run++){
+            evaluate(program, engine);
+        }
+        return (System.nanoTime() - start) / 1_000_000.0 / MEASURED_RUNS;
+    }
+
+    private static void evaluate(RayscodeProgram program, RayscodeEvaluator.Engine engine){
+        RayscodeEvaluator evaluator = new RayscodeEvaluator(program);
+        evaluator.setEngine(engine);
+        evaluator.evaluate();
+    }
+
+    private static String repeat(String code, int times){
+        return String.join(" ", Collections.nCopies(times, code));
+    }
+
+    //Builds raysCode which pushes a positive number, since only 2 and 3 are available as literals.
+    private static String literal(long number){
+        if(number == 1){
+            return "rays2 rays3 raysI";
+        } else if(number == 2){
+            return "rays2";
+        } else if(number == 3){
+            return "rays3";
+        } else if(number % 2 == 0){
+            return literal(number / 2) + " rays2 raysB";
+        } else {
+            return literal(number - 1) + " " + literal(1) + " raysP";
+        }
+    }
+
+    private static List<RayscodeFunctionMetadata> lex(String codeString) throws IOException {
+        RayscodeLexer lexer = new RayscodeLexer(new StringReader(codeString));
+        List<RayscodeFunctionMetadata> code = new ArrayList<>();
+        RayscodeFunctionMetadata token;
+        while((token = lexer.nextToken()) != null){
+            code.add(token);
+        }
+        return code;
+    }
+}
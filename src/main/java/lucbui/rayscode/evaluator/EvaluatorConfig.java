@@ -0,0 +1,166 @@
+package lucbui.rayscode.evaluator;
+
+/**
+ * The limits an evaluation runs under.
+ *
+ * A config can't be changed once it's made. Each with method returns a copy with one limit changed, so one config
+ * can be shared by any number of evaluations, on any number of threads, and each evaluation can have its own.
+ * Every function an evaluator calls runs under the same config.
+ */
+public final class EvaluatorConfig {
+
+    /**
+     * The limits evaluators use, unless they're given a config.
+     */
+    public static final EvaluatorConfig DEFAULT = new EvaluatorConfig(
+            2000,
+            15 * 1000, //15 seconds, in milliseconds.
+            Long.MAX_VALUE, //By default, only the time is limited.
+            4 * 1024 * 1024, //4 MiB, in bytes, going by RayscodeStack.sizeOf().
+            10_000,
+            1_000);
+
+    private final int maxStackSize;
+    private final long maxTimeOfEvaluation;
+    private final long maxInstructions;
+    private final long maxMemory;
+    private final int maxRecursionDepth;
+    private final int compileThreshold;
+
+    private EvaluatorConfig(int maxStackSize, long maxTimeOfEvaluation, long maxInstructions, long maxMemory,
+                            int maxRecursionDepth, int compileThreshold){
+        this.maxStackSize = maxStackSize;
+        this.maxTimeOfEvaluation = maxTimeOfEvaluation;
+        this.maxInstructions = maxInstructions;
+        this.maxMemory = maxMemory;
+        this.maxRecursionDepth = maxRecursionDepth;
+        this.compileThreshold = compileThreshold;
+    }
+
+    /**
+     * Get the largest the stack can be, counting every function's frame.
+     * @return The number of values.
+     */
+    public int getMaxStackSize(){
+        return maxStackSize;
+    }
+
+    /**
+     * Get how long a call to evaluate() can run for.
+     * @return The time, in milliseconds.
+     */
+    public long getMaxTimeOfEvaluation(){
+        return maxTimeOfEvaluation;
+    }
+
+    /**
+     * Get the number of instructions an evaluator can run, over every call to evaluate().
+     * @return The number of instructions.
+     */
+    public long getMaxInstructions(){
+        return maxInstructions;
+    }
+
+    /**
+     * Get roughly how much memory the stack and variables can take up, as weighed by RayscodeStack.sizeOf().
+     * @return The number of bytes.
+     */
+    public long getMaxMemory(){
+        return maxMemory;
+    }
+
+    /**
+     * Get how deeply functions can be nested. Tail calls don't count.
+     * @return The number of calls.
+     */
+    public int getMaxRecursionDepth(){
+        return maxRecursionDepth;
+    }
+
+    /**
+     * Get the number of times a function has to be called, or a loop repeated, before TIERED compiles it.
+     * @return The number of calls or loops.
+     */
+    public int getCompileThreshold(){
+        return compileThreshold;
+    }
+
+    /**
+     * Copy this config, with a different stack limit.
+     * @param maxStackSize The largest the stack can be.
+     * @return The new config.
+     */
+    public EvaluatorConfig withMaxStackSize(int maxStackSize){
+        requirePositive("Stack size", maxStackSize);
+        return new EvaluatorConfig(maxStackSize, maxTimeOfEvaluation, maxInstructions, maxMemory,
+                maxRecursionDepth, compileThreshold);
+    }
+
+    /**
+     * Copy this config, with a different time limit.
+     * @param maxTimeOfEvaluation How long a call to evaluate() can run for, in milliseconds.
+     * @return The new config.
+     */
+    public EvaluatorConfig withMaxTimeOfEvaluation(long maxTimeOfEvaluation){
+        requirePositive("Time of evaluation", maxTimeOfEvaluation);
+        return new EvaluatorConfig(maxStackSize, maxTimeOfEvaluation, maxInstructions, maxMemory,
+                maxRecursionDepth, compileThreshold);
+    }
+
+    /**
+     * Copy this config, with a different instruction limit.
+     * @param maxInstructions The number of instructions an evaluator can run.
+     * @return The new config.
+     */
+    public EvaluatorConfig withMaxInstructions(long maxInstructions){
+        requirePositive("Instructions", maxInstructions);
+        return new EvaluatorConfig(maxStackSize, maxTimeOfEvaluation, maxInstructions, maxMemory,
+                maxRecursionDepth, compileThreshold);
+    }
+
+    /**
+     * Copy this config, with a different memory limit.
+     * @param maxMemory Roughly how much memory the stack and variables can take up, in bytes.
+     * @return The new config.
+     */
+    public EvaluatorConfig withMaxMemory(long maxMemory){
+        requirePositive("Memory", maxMemory);
+        return new EvaluatorConfig(maxStackSize, maxTimeOfEvaluation, maxInstructions, maxMemory,
+                maxRecursionDepth, compileThreshold);
+    }
+
+    /**
+     * Copy this config, with a different limit on nested function calls.
+     * @param maxRecursionDepth How deeply functions can be nested.
+     * @return The new config.
+     */
+    public EvaluatorConfig withMaxRecursionDepth(int maxRecursionDepth){
+        requirePositive("Recursion depth", maxRecursionDepth);
+        return new EvaluatorConfig(maxStackSize, maxTimeOfEvaluation, maxInstructions, maxMemory,
+                maxRecursionDepth, compileThreshold);
+    }
+
+    /**
+     * Copy this config, with a different threshold for TIERED to compile code.
+     * @param compileThreshold The number of calls or loops before code is compiled.
+     * @return The new config.
+     */
+    public EvaluatorConfig withCompileThreshold(int compileThreshold){
+        requirePositive("Compile threshold", compileThreshold);
+        return new EvaluatorConfig(maxStackSize, maxTimeOfEvaluation, maxInstructions, maxMemory,
+                maxRecursionDepth, compileThreshold);
+    }
+
+    private static void requirePositive(String name, long value){
+        if(value <= 0){
+            throw new IllegalArgumentException(name + " must be positive, but was " + value);
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "EvaluatorConfig{maxStackSize=" + maxStackSize + ", maxTimeOfEvaluation=" + maxTimeOfEvaluation +
+                ", maxInstructions=" + maxInstructions + ", maxMemory=" + maxMemory +
+                ", maxRecursionDepth=" + maxRecursionDepth + ", compileThreshold=" + compileThreshold + "}";
+    }
+}
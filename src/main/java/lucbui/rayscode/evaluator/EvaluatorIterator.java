@@ -1,7 +1,6 @@
 package lucbui.rayscode.evaluator;
 
 import java.util.List;
-import java.util.function.Predicate;
 
 /**
  * A special iterator of my own design to help with code flow modification.
@@ -85,33 +84,11 @@ public class EvaluatorIterator<T> {
     }
 
     /**
-     * Advance to a specific value in the list.
-     * @param predicate A predicate which identifies the value to find.
-     * @return True if the value was found, false if not.
+     * Move the pointer directly to an index.
+     * @param idx The index to jump to.
      */
-    public boolean advanceTo(Predicate<T> predicate) {
-        for(int idx = currentIndex + 1; idx < list.size(); idx++){
-             if (predicate.test(list.get(idx))) {
-                currentIndex = idx;
-                return true;
-            }
-        }
-        return false;
-    }
-
-    /**
-     * Advance backwards to a specific value in the list.
-     * @param predicate A predicate which identifies the value to find.
-     * @return True if the value was found, false if not.
-     */
-    public boolean advanceBackTo(Predicate<T> predicate){
-        for(int idx = currentIndex - 1; idx >= 0; idx--){
-            if (predicate.test(list.get(idx))) {
-                currentIndex = idx;
-                return true;
-            }
-        }
-        return false;
+    public void jumpTo(int idx){
+        currentIndex = idx;
     }
 
     /**
@@ -26,6 +26,6 @@ public class EvaluatorMain {
 
     private static void evaluate(List<RayscodeFunctionMetadata> code){
         RayscodeEvaluator eval = new RayscodeEvaluator(code);
-        System.out.println(code.toString() + "=" + eval.evaluate() + ":" + eval.getVars());
+        System.out.println(code.toString() + "=" + eval.evaluate() + ":" + eval.getVars() + " (" + eval.getInstructionCount() + " instructions, " + eval.getPeakMemory() + " bytes)");
     }
 }
@@ -0,0 +1,238 @@
+package lucbui.rayscode.evaluator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs any number of evaluators on a few threads, a slice of instructions at a time.
+ *
+ * Each evaluator runs until it has used up a quantum of instructions, then yields, and goes to the back of the line,
+ * so a program which runs for a long time can't keep a thread from everyone else. Short programs finish in their
+ * first slice or two, however many long ones are running, and long ones still make steady progress.
+ *
+ * Evaluators belong to owners, such as the users who asked for them, and the threads are shared fairly between
+ * owners rather than evaluators, so one owner can't crowd out everyone else by starting more of them. Owners can be
+ * given a weight, and get slices in proportion to it. This is stride scheduling: each owner has a pass, which goes up
+ * by the stride, the inverse of its weight, every time it's given a slice, and the owner with the lowest pass goes
+ * next. An owner with nothing to run doesn't save up slices for later, since it starts back at the pass of whichever
+ * owner went last. An owner's own evaluators take turns.
+ */
+public class EvaluatorScheduler {
+
+    //The stride of an owner with a weight of 1.
+    private static final long STRIDE = 1 << 20;
+
+    private final long quantum;
+    private final List<Thread> workers = new ArrayList<>();
+    //Owners with evaluators waiting for a slice, the lowest pass first, and the first to arrive if it's a tie.
+    private final PriorityQueue<Owner> ready = new PriorityQueue<>(
+            Comparator.<Owner>comparingLong(owner -> owner.pass).thenComparingLong(owner -> owner.arrival));
+    //Owners with evaluators waiting or running. An owner is forgotten once it has neither.
+    private final Map<Object, Owner> owners = new HashMap<>();
+    //The pass of the owner which went last.
+    private long pass;
+    private long arrivals;
+    private int inFlight;
+    private boolean shutdown;
+
+    private static final class Owner {
+        private final Object key;
+        private final Deque<Task> tasks = new ArrayDeque<>();
+        private int weight;
+        private long pass;
+        private long arrival;
+        private boolean queued;
+        private int running;
+
+        private Owner(Object key){
+            this.key = key;
+        }
+    }
+
+    private static final class Task {
+        private final Owner owner;
+        private final RayscodeEvaluator evaluator;
+        private final CompletableFuture<EvaluationResult> result = new CompletableFuture<>();
+
+        private Task(Owner owner, RayscodeEvaluator evaluator){
+            this.owner = owner;
+            this.evaluator = evaluator;
+        }
+    }
+
+    /**
+     * Create a scheduler running on daemon threads.
+     * @param threads The number of threads to run evaluators on.
+     * @param quantum The most instructions an evaluator runs before it yields.
+     */
+    public EvaluatorScheduler(int threads, long quantum){
+        this(threads, quantum, daemonThreads());
+    }
+
+    /**
+     * Create a scheduler.
+     * @param threads The number of threads to run evaluators on.
+     * @param quantum The most instructions an evaluator runs before it yields.
+     * @param threadFactory Makes the threads.
+     */
+    public EvaluatorScheduler(int threads, long quantum, ThreadFactory threadFactory){
+        if(threads <= 0 || quantum <= 0){
+            throw new IllegalArgumentException("Threads and quantum must be positive");
+        }
+        this.quantum = quantum;
+        for(int thread = 0; thread < threads; thread++){
+            Thread worker = threadFactory.newThread(this::work);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Evaluate an evaluator, a slice at a time, until it finishes, pauses for input, or fails.
+     * An evaluator must not be submitted again, or evaluated any other way, until it's done. Cancelling the result
+     * cancels the evaluator.
+     * @param key The owner of the evaluator, such as the ID of the user who asked for it.
+     * @param weight The share of the threads the owner gets, compared to the others. The default is 1.
+     * @param evaluator The evaluator.
+     * @return The result, once the evaluator finishes or pauses. If it fails, this fails with the same exception.
+     */
+    public synchronized CompletableFuture<EvaluationResult> submit(Object key, int weight, RayscodeEvaluator evaluator){
+        if(weight <= 0){
+            throw new IllegalArgumentException("Weight must be positive, but was " + weight);
+        }
+        if(shutdown){
+            throw new IllegalStateException("Scheduler has been shut down");
+        }
+        Owner owner = owners.computeIfAbsent(key, Owner::new);
+        owner.weight = weight;
+        Task task = new Task(owner, evaluator);
+        owner.tasks.addLast(task);
+        inFlight++;
+        if(!owner.queued){
+            enqueue(owner);
+        }
+        task.result.whenComplete((stack, ex) -> {
+            if(task.result.isCancelled()){
+                evaluator.cancel();
+            }
+        });
+        return task.result;
+    }
+
+    //Put an owner in line for a slice. It can't be any further ahead than the owner which went last.
+    private void enqueue(Owner owner){
+        owner.pass = Math.max(owner.pass, pass);
+        owner.arrival = arrivals++;
+        owner.queued = true;
+        ready.add(owner);
+        notify();
+    }
+
+    //What each thread does: give a slice to the evaluator whose turn it is, over and over.
+    private void work(){
+        while(true){
+            Task task;
+            synchronized(this){
+                while(ready.isEmpty() && !shutdown){
+                    try {
+                        wait();
+                    } catch (InterruptedException ex){
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if(ready.isEmpty()){
+                    return;
+                }
+                Owner owner = ready.poll();
+                owner.queued = false;
+                pass = owner.pass;
+                owner.pass += STRIDE / owner.weight;
+                task = owner.tasks.pollFirst();
+                owner.running++;
+                if(!owner.tasks.isEmpty()){
+                    enqueue(owner);
+                }
+            }
+            //The slice runs, and the result is completed, without holding the lock, so whatever waits on it can take
+            //as long as it likes.
+            boolean yielded = runSlice(task);
+            synchronized(this){
+                Owner owner = task.owner;
+                owner.running--;
+                if(yielded){
+                    owner.tasks.addLast(task);
+                    if(!owner.queued){
+                        enqueue(owner);
+                    }
+                } else {
+                    inFlight--;
+                    if(owner.tasks.isEmpty() && owner.running == 0){
+                        owners.remove(owner.key);
+                    }
+                }
+            }
+        }
+    }
+
+    //Run one slice of an evaluator, and check if it yielded, so it needs another.
+    private boolean runSlice(Task task){
+        if(task.result.isDone()){
+            //Cancelled while it waited.
+            return false;
+        }
+        try {
+            RayscodeStack stack = task.evaluator.evaluate(quantum);
+            if(task.evaluator.isYielded()){
+                return true;
+            }
+            task.result.complete(new EvaluationResult(task.evaluator, stack));
+        } catch (Throwable ex){
+            task.result.completeExceptionally(ex);
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of evaluators which have been submitted, and aren't done yet.
+     * @return The number of evaluators running, or waiting for a slice.
+     */
+    public synchronized int getInFlight(){
+        return inFlight;
+    }
+
+    /**
+     * Get the most instructions an evaluator runs before it yields.
+     * @return The quantum.
+     */
+    public long getQuantum(){
+        return quantum;
+    }
+
+    /**
+     * Stop taking evaluators. Those already submitted still run until they're done.
+     */
+    public synchronized void shutdown(){
+        shutdown = true;
+        notifyAll();
+    }
+
+    //Daemon threads, so a stuck evaluation never keeps the program from shutting down.
+    private static ThreadFactory daemonThreads(){
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "rayscode-scheduler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
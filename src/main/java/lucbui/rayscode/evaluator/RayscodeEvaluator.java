@@ -1,38 +1,232 @@
 package lucbui.rayscode.evaluator;
 
+import lucbui.rayscode.compiler.Opcodes;
+import lucbui.rayscode.compiler.RayscodeCompiler;
+import lucbui.rayscode.compiler.RayscodeProgram;
+import lucbui.rayscode.compiler.Shortcut;
+import lucbui.rayscode.compiler.StackEffects;
+import lucbui.rayscode.compiler.SymbolTable;
+import lucbui.rayscode.token.Rayscode;
 import lucbui.rayscode.token.RayscodeFunction;
 import lucbui.rayscode.token.RayscodeFunctionMetadata;
 
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
-import java.util.stream.Stream;
 
 /**
  * An Evaluator that explicitly evaluates raysCode
  */
 public class RayscodeEvaluator {
 
-    public static int MAX_STACK_SIZE = 2000;
-    public static long MAX_TIME_OF_EVALUATION = 15 * 1000; //15 seconds, in milliseconds.
+    /**
+     * The ways an evaluator can run code. All of them give the same results.
+     */
+    public enum Engine {
+        /**
+         * Run each instruction by calling its function.
+         */
+        TOKENS,
+        /**
+         * Run each instruction by switching on its opcode, calling Rayscode operators directly.
+         * Sequences of instructions with a shortcut, like arithmetic on constants, are run all at once.
+         * Debug output is only available from TOKENS, so a debugging evaluator always uses TOKENS for its own code.
+         */
+        OPCODES,
+        /**
+         * Run code compiled into a JVM class, which the JVM can compile into machine code in turn.
+         * Code too large to fit into a JVM method is run by OPCODES instead.
+         * Debug output is only available from TOKENS, so a debugging evaluator always uses TOKENS for its own code.
+         */
+        COMPILED,
+        /**
+         * Run code by OPCODES, counting how often each function is called and each loop repeats. Once a function or
+         * loop has been run as many times as the config's compile threshold, it is run as COMPILED code instead, which assumes no instruction
+         * is overridden by a method. If a method overrides one, the code goes back to being run by OPCODES.
+         * Debug output is only available from TOKENS, so a debugging evaluator always uses TOKENS for its own code.
+         */
+        TIERED
+    }
 
-    private Map<String, BigInteger> variables;
-    private Map<String, RayscodeFunctionMetadata> methods;
-    private Deque<BigInteger> stack;
+    //How often a program has been run by a TIERED evaluator, shared by every call to the same function.
+    private static class Profile {
+        private final int threshold;
+        private int hotness;
+
+        private Profile(int threshold){
+            this.threshold = threshold;
+        }
+
+        //Count one more call or loop, and check if this one made the program hot.
+        private boolean count(){
+            return hotness < threshold && ++hotness == threshold;
+        }
+
+        private boolean isHot(){
+            return hotness >= threshold;
+        }
+    }
+
+    //How much an evaluation has run, and whether it has to stop, shared by every evaluator on its call chain.
+    //Instructions burn fuel, and the limits are only checked once it runs out, since reading the clock takes far
+    //longer than running most instructions.
+    private static class Meter {
+        private final EvaluatorConfig config;
+        private long deadline;
+        //Instructions run before the current tank of fuel.
+        private long instructions;
+        private long tank;
+        private long fuel;
+        private volatile boolean cancelled;
+        //The most memory the stack and variables have taken up, at the end of any instruction.
+        private long peakMemory;
+        //The time spent running the slices of the evaluation before this one, and when this one started.
+        private long elapsed;
+        private long sliceStart;
+        //The instruction count at which the current slice is used up, and whether it has been.
+        private long sliceEnd = Long.MAX_VALUE;
+        private boolean yielded;
+
+        private Meter(EvaluatorConfig config){
+            this.config = config;
+        }
+
+        //Start the clock on one call to evaluate(), which runs a slice of at most a quantum of instructions. A slice
+        //carrying on from one which yielded only gets the time the earlier slices left.
+        private void start(long quantum, boolean resuming){
+            long now = System.currentTimeMillis();
+            if(!resuming){
+                elapsed = 0;
+            }
+            sliceStart = now;
+            deadline = now + config.getMaxTimeOfEvaluation() - elapsed;
+            yielded = false;
+            long counted = getInstructions();
+            sliceEnd = quantum > Long.MAX_VALUE - counted ? Long.MAX_VALUE : counted + quantum;
+            refuel();
+        }
+
+        //Stop the clock, at the end of a call to evaluate().
+        private void stop(){
+            elapsed += System.currentTimeMillis() - sliceStart;
+        }
+
+        private long getInstructions(){
+            return instructions + tank - fuel;
+        }
+
+        //Check the limits, now the tank has run dry, and fill it back up.
+        //The tank never holds more than the instructions left before the instruction limit, so that limit is checked as
+        //soon as it is passed.
+        private void refuel(){
+            long maxInstructions = config.getMaxInstructions();
+            instructions += tank - fuel;
+            tank = 0;
+            fuel = 0;
+            if(cancelled){
+                throw new IllegalStateException("Code has been cancelled");
+            }
+            if(instructions > maxInstructions){
+                throw new IllegalStateException("Code has run more than " + maxInstructions + " instructions. Code has been terminated");
+            }
+            if(System.currentTimeMillis() > deadline){
+                throw new IllegalStateException("Code has been running for " + (config.getMaxTimeOfEvaluation() / 1000) + " seconds. Code has been terminated");
+            }
+            long remaining = maxInstructions - instructions;
+            tank = remaining < CHECK_INTERVAL ? remaining + 1 : CHECK_INTERVAL;
+            //The tank doesn't run past the end of the slice either. Once it's used up, the evaluator stops at the next
+            //instruction it can.
+            long untilYield = sliceEnd - instructions;
+            if(untilYield <= 0){
+                yielded = true;
+            } else if(untilYield < tank){
+                tank = untilYield;
+            }
+            fuel = tank;
+        }
+    }
+
+    //Instructions run between checks of the clock, and of cancel().
+    static final int CHECK_INTERVAL = 1024;
+
+    //Both indexed by the slots in the program's symbol table, and shared with every function this evaluator calls.
+    private Environment<BigInteger> variables;
+    private Environment<RayscodeFunctionMetadata> methods;
+    //If this evaluator is running a function, the markers of the scopes and stack frame it was given. Otherwise -1.
+    private int variablesScope = -1;
+    private int methodsScope = -1;
+    private int stackFrame = -1;
+    //Whether the stack frame is reversed when it's returned. Tail calls which take over a frame flip this.
+    private boolean reverseOnReturn = true;
+    private RayscodeStack stack;
+
+    //Function calls don't recurse through Java. Each call is an evaluator of its own, which points back at the
+    //evaluator that called it, and the evaluator at the bottom of the chain runs whichever one is on top.
+    private RayscodeEvaluator caller;
+    //A function this evaluator has asked to call, which is run once the current instruction finishes.
+    private RayscodeEvaluator callee;
+    //The number of function calls between this evaluator and the bottom of the chain.
+    private int depth;
+    //The instructions run, and the limits on them, for the evaluation this evaluator is part of.
+    private final Meter meter;
+    //If the last call to evaluate() yielded, the evaluator running the innermost function call when it did.
+    private RayscodeEvaluator suspended;
+    //Values set by name, for names our code never uses, so they have no slot. They're handed down to every function
+    //we call, and any function whose code does use one of the names gets the value in its slot. Null until one is set.
+    private Map<String, BigInteger> namedVariables;
+    private Map<String, RayscodeFunctionMetadata> namedMethods;
+    //When running TIERED, the profile of every program run on this call chain, and the one for our own program.
+    private Map<RayscodeProgram, Profile> profiles;
+    private Profile profile;
+    //Whether a method overrides any builtin our program runs, and whether its stack effects hold, worked out when
+    //they're first needed, and again after we bind a method. Anything a function we call binds is forgotten once it
+    //returns, so nothing else can change them. Without this, every call and return would have to check again.
+    private boolean overridesChecked;
+    private boolean builtinOverridden;
+    private boolean stackVerified;
 
     private boolean paused;
     private String inputString;
     private StringBuilder outputString;
 
+    private RayscodeProgram program;
     private EvaluatorIterator<RayscodeFunctionMetadata> iterator;
     private boolean debug;
     private Consumer<String> outputMethod;
+    private Engine engine = Engine.TIERED;
 
     public RayscodeEvaluator(List<RayscodeFunctionMetadata> code) {
-        variables = new HashMap<>();
-        stack = new LinkedList<>();
-        methods = new HashMap<>();
-        this.iterator = new EvaluatorIterator<>(code);
+        this(RayscodeCompiler.compile(code));
+    }
+
+    public RayscodeEvaluator(RayscodeProgram program) {
+        this(program, EvaluatorConfig.DEFAULT);
+    }
+
+    /**
+     * Create an evaluator for a program, with limits of its own.
+     * Programs never change once they're compiled, so any number of evaluators can run the same one, on any number of
+     * threads. Everything an evaluation changes belongs to its evaluator.
+     * @param program The program to run.
+     * @param config The limits to run it under.
+     */
+    public RayscodeEvaluator(RayscodeProgram program, EvaluatorConfig config) {
+        this(program, new RayscodeStack(config.getMaxStackSize()),
+                new Environment<>(program.getSymbols().size(), RayscodeStack::sizeOf),
+                new Environment<>(program.getSymbols().size()), new Meter(config));
+    }
+
+    private RayscodeEvaluator(RayscodeProgram program, RayscodeStack stack,
+                              Environment<BigInteger> variables, Environment<RayscodeFunctionMetadata> methods,
+                              Meter meter) {
+        this.meter = meter;
+        this.variables = variables;
+        this.stack = stack;
+        this.methods = methods;
+        this.program = program;
+        this.iterator = new EvaluatorIterator<>(program.getCode());
         this.outputString = new StringBuilder();
     }
 
@@ -44,59 +238,259 @@ public class RayscodeEvaluator {
         this.outputMethod = method;
     }
 
+    /**
+     * Choose how code is run. Functions this evaluator calls are run the same way.
+     * @param engine The engine to use.
+     */
+    public void setEngine(Engine engine){
+        this.engine = engine;
+    }
+
     /**
      * Create a new evaluator based on this one.
      * Used in method running, this "splits" off the main evaluator, preserving the variables and shortening
-     * the stack.
+     * the stack. The new evaluator runs in a new scope and stack frame, which must be left with exitScope() once
+     * it's done.
      * @param numberOfParameters The number of parameters to preserve.
+     * @param program The program the new evaluator runs.
      * @return An evaluator based off this one.
      */
-    public RayscodeEvaluator createNewEvaluator(int numberOfParameters, List<RayscodeFunctionMetadata> code){
-        RayscodeEvaluator newEvaluator = new RayscodeEvaluator(code);
-        Stream.iterate(0, i -> i + 1).limit(numberOfParameters).forEach(i -> newEvaluator.stack.push(stack.pop()));
-        newEvaluator.variables = new HashMap<>(variables);
-        newEvaluator.methods = new HashMap<>(methods);
+    public RayscodeEvaluator createNewEvaluator(int numberOfParameters, RayscodeProgram program){
+        //The parameters stay where they are on the stack, and become the bottom of the function's frame.
+        RayscodeEvaluator newEvaluator = new RayscodeEvaluator(program, stack, variables, methods, meter);
+        newEvaluator.stackFrame = stack.enterFrame(numberOfParameters);
+        //The function's symbol table extends ours, so every slot means the same thing in both.
+        variables.ensureCapacity(program.getSymbols().size());
+        methods.ensureCapacity(program.getSymbols().size());
+        newEvaluator.variablesScope = variables.enterScope();
+        newEvaluator.methodsScope = methods.enterScope();
+        newEvaluator.engine = engine;
+        bindNamed(newEvaluator);
+        startProfile(newEvaluator);
         return newEvaluator;
     }
 
+    /**
+     * Leave the scope of an evaluator made by createNewEvaluator.
+     * Any variables or methods bound while it ran are forgotten, and the caller's values come back. Whatever is
+     * left in its stack frame is returned to the caller's frame.
+     */
+    public void exitScope(){
+        if(variablesScope >= 0){
+            variables.exitScope(variablesScope);
+            methods.exitScope(methodsScope);
+            stack.exitFrame(stackFrame, reverseOnReturn);
+            variablesScope = -1;
+            methodsScope = -1;
+            stackFrame = -1;
+        }
+    }
+
+    /**
+     * Call a function, once the current instruction finishes.
+     * The function is run by a new evaluator, made by createNewEvaluator, on the same call chain as this one. When
+     * it completes, its scope is left, and this evaluator carries on from the instruction after the call.
+     *
+     * If the call is the last thing this evaluator does, and only the parameters are left in its stack frame, the
+     * function takes over this evaluator's scope and frame instead, so tail calls don't make the chain any longer.
+     *
+     * Functions which can be inlined are run straight away instead, in a stack frame of their own, without an
+     * evaluator or scope. Every engine but TOKENS does this.
+     * @param numberOfParameters The number of parameters to pass.
+     * @param program The program the function runs.
+     */
+    public void call(int numberOfParameters, RayscodeProgram program){
+        boolean tailCall = caller != null && this.program.isTailPosition(iterator.getCurrentIndex()) && stack.size() == numberOfParameters;
+        int maxRecursionDepth = meter.config.getMaxRecursionDepth();
+        if(!tailCall && depth >= maxRecursionDepth){
+            throw new IllegalStateException("Functions are nested too deeply, must be less than " + maxRecursionDepth + " calls");
+        }
+        //Inlined code has no scope to put values set by name in, so it can't be inlined if there are any.
+        if(engine != Engine.TOKENS && program.isInlinable() && namedMethods == null){
+            methods.ensureCapacity(program.getSymbols().size());
+            if(!program.isAnyBuiltinOverridden(this::hasMethod)){
+                inline(numberOfParameters, program);
+                return;
+            }
+        }
+        if(tailCall){
+            RayscodeEvaluator newEvaluator = new RayscodeEvaluator(program, stack, variables, methods, meter);
+            variables.ensureCapacity(program.getSymbols().size());
+            methods.ensureCapacity(program.getSymbols().size());
+            newEvaluator.variablesScope = variablesScope;
+            newEvaluator.methodsScope = methodsScope;
+            newEvaluator.stackFrame = stackFrame;
+            //Our frame would have been reversed when we returned, so the function's frame is reversed one less time.
+            stack.reverseFrame();
+            newEvaluator.reverseOnReturn = !reverseOnReturn;
+            newEvaluator.caller = caller;
+            newEvaluator.depth = depth;
+            newEvaluator.engine = engine;
+            bindNamed(newEvaluator);
+            startProfile(newEvaluator);
+            //The new evaluator leaves our scope for us.
+            variablesScope = -1;
+            methodsScope = -1;
+            stackFrame = -1;
+            callee = newEvaluator;
+        } else {
+            RayscodeEvaluator newEvaluator = createNewEvaluator(numberOfParameters, program);
+            newEvaluator.caller = this;
+            newEvaluator.depth = depth + 1;
+            callee = newEvaluator;
+        }
+    }
+
+    //Run an inlinable function in a frame of its own, just as an evaluator of its own would, with the same checks.
+    private void inline(int numberOfParameters, RayscodeProgram program){
+        EvaluatorIterator<RayscodeFunctionMetadata> iterator = new EvaluatorIterator<>(program.getCode());
+        int oldBase = stack.enterFrame(numberOfParameters);
+        try {
+            int index = 0;
+            while(index < program.size()){
+                Shortcut shortcut = program.getShortcut(index);
+                int next = shortcut == null ? -1 : runShortcut(shortcut);
+                if(next < 0){
+                    iterator.jumpTo(index);
+                    iterator.get().getFunction().execute(stack, iterator, this);
+                    next = index + 1;
+                }
+                checkLimits(next - index, true);
+                index = next;
+            }
+        } finally {
+            stack.exitFrame(oldBase, true);
+        }
+    }
+
+    //Hand the values set by name down to an evaluator for a function call, and put any whose names the function's code
+    //uses, and ours doesn't, in their slots. The function's scope has already been entered, so they're only there until
+    //it returns.
+    private void bindNamed(RayscodeEvaluator newEvaluator){
+        newEvaluator.namedVariables = namedVariables;
+        newEvaluator.namedMethods = namedMethods;
+        SymbolTable symbols = newEvaluator.program.getSymbols();
+        int ours = program.getSymbols().size();
+        if(namedVariables != null){
+            for(Map.Entry<String, BigInteger> named : namedVariables.entrySet()){
+                int slot = symbols.getSlot(named.getKey());
+                if(slot >= ours){
+                    variables.set(slot, named.getValue());
+                }
+            }
+        }
+        if(namedMethods != null){
+            for(Map.Entry<String, RayscodeFunctionMetadata> named : namedMethods.entrySet()){
+                int slot = symbols.getSlot(named.getKey());
+                if(slot >= ours){
+                    methods.set(slot, named.getValue());
+                }
+            }
+        }
+    }
+
+    //Give an evaluator for a function call the profile of its program, and count the call.
+    private void startProfile(RayscodeEvaluator newEvaluator){
+        if(profiles != null){
+            newEvaluator.profiles = profiles;
+            newEvaluator.profile = profiles.computeIfAbsent(newEvaluator.program, key -> new Profile(meter.config.getCompileThreshold()));
+            newEvaluator.profile.count();
+        }
+    }
+
     /**
      * Evaluate a line of code.
+     * Code which is certain to run out of values on the stack, straight off, fails before any of it runs, with the
+     * same error it would have failed with after running up to that point. Since none of the code runs, a debugging
+     * evaluator doesn't log it.
      * @return The final value in the stack.
      */
-    public Deque<BigInteger> evaluate(){
-        long currentTime = System.currentTimeMillis();
+    public RayscodeStack evaluate(){
+        return evaluate(Long.MAX_VALUE);
+    }
+
+    /**
+     * Evaluate a line of code, for a slice of at most some number of instructions.
+     * If the code hasn't finished, or paused for input, once it has run that many, this evaluator yields: it stops where
+     * it is, even in the middle of a function, and isYielded() is true until evaluate is called again, which carries on
+     * from there. The time limit covers the time spent running every slice, but not the time in between.
+     *
+     * Instructions can only stop at certain points, such as the end of a loop in compiled code, so a slice can run a
+     * few more instructions than asked.
+     * @param quantum The most instructions to run.
+     * @return The stack, as it is when this evaluator finishes, pauses, or yields.
+     */
+    public RayscodeStack evaluate(long quantum){
+        if(quantum <= 0){
+            throw new IllegalArgumentException("Quantum must be positive, but was " + quantum);
+        }
         StringBuilder debugString = new StringBuilder();
-        while(!iterator.isComplete() && !isPaused()){
-            RayscodeFunctionMetadata metadata = iterator.get();
-            RayscodeFunction funcToExecute;
-            if(methods.containsKey(metadata.getId())){
-                funcToExecute = methods.get(metadata.getId()).getFunction();
-            } else {
-                funcToExecute = metadata.getFunction();
-            }
-            funcToExecute.execute(stack, iterator, this);
-            if(!isPaused()) {
-                iterator.advance();
-            }
-            //Limit the stack size so people can't effectively DOS my machine.
-            if(stack.size() > MAX_STACK_SIZE){
-                throw new IllegalStateException("Stack is too large, must be less than " + MAX_STACK_SIZE + " elements");
-            }
-            if(System.currentTimeMillis() > currentTime + MAX_TIME_OF_EVALUATION){
-                throw new IllegalStateException("Code has been running for " + (MAX_TIME_OF_EVALUATION / 1000) + " seconds. Code has been terminated");
-            }
-            if(debug && outputMethod != null){
-                debugString.append("Command: ")
-                        .append(funcToExecute.toString())
-                        .append(" Stack: ")
-                        .append(stack.toString())
-                        .append(" Output: ")
-                        .append(outputString.toString())
-                        .append("\n");
-                if(debugString.length() > 1000){
-                    outputMethod.accept(debugString.toString().trim());
-                    debugString.setLength(0);
+        boolean resuming = suspended != null;
+        //The evaluator running the innermost function call, or this one if no function is running.
+        RayscodeEvaluator current = resuming ? suspended : this;
+        suspended = null;
+        try {
+            meter.start(quantum, resuming);
+            if(engine == Engine.TIERED && profiles == null){
+                profiles = new IdentityHashMap<>();
+                profile = new Profile(meter.config.getCompileThreshold());
+                profiles.put(program, profile);
+            }
+            if(!resuming && iterator.getCurrentIndex() == 0 && stack.isEmpty()){
+                rejectUnderflow();
+            }
+            while(true){
+                //A function ends when it runs out of code, or when it waits for input, which functions can't get.
+                if(current.iterator.isComplete() || current.isPaused()){
+                    if(current == this){
+                        break;
+                    }
+                    current = current.returnToCaller();
+                    continue;
+                }
+                //Once the slice is used up, stop, keeping every function call, so the next slice carries on here.
+                if(meter.yielded){
+                    suspended = current;
+                    break;
+                }
+                //Only instructions this evaluator runs itself are logged, not those run by functions it calls.
+                boolean log = debug && outputMethod != null && current == this;
+                RayscodeFunction funcToExecute = null;
+                if(engine == Engine.TIERED && !log){
+                    current.executeTiered();
+                } else if(engine == Engine.COMPILED && !log){
+                    current.executeCompiled();
+                } else if(engine == Engine.OPCODES && !log){
+                    current.executeOpcodes();
+                } else {
+                    funcToExecute = current.execute();
+                    checkLimits();
+                }
+                if(current.callee != null){
+                    RayscodeEvaluator newEvaluator = current.callee;
+                    current.callee = null;
+                    current = newEvaluator;
                 }
+                if(log){
+                    debugString.append("Command: ")
+                            .append(funcToExecute.toString())
+                            .append(" Stack: ")
+                            .append(stack.toString())
+                            .append(" Output: ")
+                            .append(outputString.toString())
+                            .append("\n");
+                    if(debugString.length() > 1000){
+                        outputMethod.accept(debugString.toString().trim());
+                        debugString.setLength(0);
+                    }
+                }
+            }
+        } finally {
+            meter.stop();
+            //If something went wrong inside a function, leave every function's scope, so this evaluator is left as it
+            //was before the calls were made.
+            while(current != this && suspended == null){
+                current = current.returnToCaller();
             }
         }
         if(debugString.length() > 0){
@@ -105,44 +499,677 @@ public class RayscodeEvaluator {
         return stack;
     }
 
+    /**
+     * Evaluate a line of code on an executor, without waiting for it.
+     * Cancelling the result cancels this evaluator, which stops within CHECK_INTERVAL instructions. If the code pauses
+     * for input, the result says so, and resumeAsync() carries on once there is some. The evaluator must not be used
+     * any other way until the result is done.
+     * @param executor Runs the evaluation.
+     * @return The result, once the code finishes or pauses. If the evaluation fails, this fails with the same exception.
+     */
+    public CompletableFuture<EvaluationResult> evaluateAsync(Executor executor){
+        CompletableFuture<EvaluationResult> result = new CompletableFuture<>();
+        result.whenComplete((value, ex) -> {
+            if(result.isCancelled()){
+                cancel();
+            }
+        });
+        executor.execute(() -> {
+            if(result.isDone()){
+                //Cancelled before it started.
+                return;
+            }
+            try {
+                result.complete(new EvaluationResult(this, evaluate()));
+            } catch (Throwable ex){
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Give a paused evaluator its input, and carry on evaluating on an executor, without waiting for it.
+     * @param input The input.
+     * @param executor Runs the evaluation.
+     * @return The result, as with evaluateAsync().
+     */
+    public CompletableFuture<EvaluationResult> resumeAsync(String input, Executor executor){
+        if(!paused){
+            throw new IllegalStateException("Evaluator is not waiting for input");
+        }
+        setInputString(input);
+        setPaused(false);
+        return evaluateAsync(executor);
+    }
+
+    //Code which is certain to run out of values on the stack fails before any of it runs, with the error it would have
+    //failed with anyway. It's only certain if nothing the code runs first is overridden, or could run into another
+    //limit first. The verifier only looks at code which can't take long to run, so the time limit never comes first.
+    private void rejectUnderflow(){
+        StackEffects effects = program.getStackEffects();
+        int underflow = effects.getUnderflow();
+        if(underflow < 0 || effects.getUnderflowPeak() > meter.config.getMaxStackSize() || program.isAnyBuiltinOverridden(this::hasMethod)){
+            return;
+        }
+        //The code before it only ever makes values which fit in a long, so it can only run into the memory or
+        //instruction limits if they're tiny. If it could, the code has to run, to fail the way it would have anyway.
+        if(underflow >= meter.config.getMaxInstructions() || (long) effects.getUnderflowPeak() * Long.BYTES > meter.config.getMaxMemory()){
+            return;
+        }
+        throw new IllegalArgumentException(
+                program.getCode().get(underflow).getFunction() + " at location " + (underflow + 1) +
+                        " requires " + effects.getUnderflowArguments() + " arguments, but stack is of size " + effects.getUnderflowDepth());
+    }
+
+    //Run the current instruction, and move on to the next one.
+    private RayscodeFunction execute(){
+        RayscodeFunction funcToExecute = iterator.get().getFunction();
+        //Only instructions with a method slot can be overridden by a method.
+        int methodSlot = program.getMethodSlot(iterator.getCurrentIndex());
+        if(methodSlot >= 0 && methods.get(methodSlot) != null){
+            funcToExecute = methods.get(methodSlot).getFunction();
+        }
+        funcToExecute.execute(stack, iterator, this);
+        if(!isPaused()) {
+            iterator.advance();
+        }
+        return funcToExecute;
+    }
+
+    //Run instructions by opcode, until this evaluator finishes, waits for input, calls a function, or yields.
+    //Anything which could throw is left to the Rayscode operator, so errors are reported exactly as they are when
+    //running by token. The iterator is kept on the current instruction, for the operators which use it.
+    //Shortcuts are taken while no builtin is overridden, which can only change when a function is declared. So are the
+    //stack effects: instructions proven to have the values they need run without checking for them, and code proven
+    //to stay under the stack limit, from the start, doesn't check the stack size.
+    private void executeOpcodes(){
+        RayscodeProgram program = this.program;
+        EvaluatorIterator<RayscodeFunctionMetadata> iterator = this.iterator;
+        RayscodeStack stack = this.stack;
+        int size = program.size();
+        int index = iterator.getCurrentIndex();
+        boolean hot = false;
+        checkOverrides();
+        boolean shortcuts = !builtinOverridden;
+        StackEffects effects = program.getStackEffects();
+        boolean verified = stackVerified;
+        boolean checkStack = !verified || index != 0 || effects.getGrowth() < 0
+                || stack.totalSize() + effects.getGrowth() > meter.config.getMaxStackSize();
+        while(index < size){
+            Shortcut shortcut = shortcuts ? program.getShortcut(index) : null;
+            int next = shortcut == null ? -1 : runShortcut(shortcut);
+            if(next >= 0){
+                checkLimits(shortcut.getEnd() - index, checkStack);
+                index = next;
+                if(meter.yielded){
+                    break;
+                }
+                continue;
+            }
+            if(verified && effects.hasArguments(index) && runVerified(program.getOpcode(index))){
+                index++;
+                checkLimits(1, checkStack);
+                if(meter.yielded){
+                    break;
+                }
+                continue;
+            }
+            iterator.jumpTo(index);
+            int opcode = program.getOpcode(index);
+            if(opcode < 0){
+                RayscodeFunctionMetadata method = methods.get(program.getMethodSlot(index));
+                //EXECUTE runs the overriding method instead.
+                opcode = method == null ? ~opcode : Opcodes.EXECUTE;
+            }
+            switch(opcode){
+                case Opcodes.TWO: stack.push(2); break;
+                case Opcodes.THREE: stack.push(3); break;
+                case Opcodes.SIZE: stack.push(stack.size()); break;
+                case Opcodes.VARIABLE: Rayscode.VARIABLE.execute(stack, iterator, this); break;
+                case Opcodes.ADD: Rayscode.ADD.execute(stack, iterator, this); break;
+                case Opcodes.SUBTRACT: Rayscode.SUBTRACT.execute(stack, iterator, this); break;
+                case Opcodes.MULTIPLY: Rayscode.MULTIPLY.execute(stack, iterator, this); break;
+                case Opcodes.DIVIDE: Rayscode.DIVIDE.execute(stack, iterator, this); break;
+                case Opcodes.INPUT: Rayscode.INPUT.execute(stack, iterator, this); break;
+                case Opcodes.OUTPUT: Rayscode.OUTPUT.execute(stack, iterator, this); break;
+                case Opcodes.SWAP: Rayscode.SWAP.execute(stack, iterator, this); break;
+                case Opcodes.POP: Rayscode.POP.execute(stack, iterator, this); break;
+                case Opcodes.DUPLICATE: Rayscode.DUPLICATE.execute(stack, iterator, this); break;
+                case Opcodes.ROLL: Rayscode.ROLL.execute(stack, iterator, this); break;
+                case Opcodes.ASSIGNMENT: Rayscode.ASSIGNMENT.execute(stack, iterator, this); break;
+                case Opcodes.IF:
+                    if(stack.isEmpty() || program.getOperand(index) < 0){
+                        Rayscode.IF.execute(stack, iterator, this);
+                    } else if(stack.peekSignum() > 0){
+                        iterator.jumpTo(program.getOperand(index));
+                    }
+                    break;
+                case Opcodes.ELSE:
+                    if(program.getOperand(index) < 0){
+                        Rayscode.ELSE.execute(stack, iterator, this);
+                    } else {
+                        iterator.jumpTo(program.getOperand(index));
+                    }
+                    break;
+                case Opcodes.ENDLOOP:
+                    if(program.getOperand(index) < 0){
+                        Rayscode.ENDLOOP.execute(stack, iterator, this);
+                    } else {
+                        iterator.jumpTo(program.getOperand(index));
+                        //A loop which just got hot stops here, so it can carry on as compiled code.
+                        hot = profile != null && profile.count();
+                    }
+                    break;
+                case Opcodes.ENDIF:
+                case Opcodes.METHOD:
+                case Opcodes.STARTLOOP:
+                    break;
+                case Opcodes.STARTFUNC:
+                    Rayscode.STARTFUNC.execute(stack, iterator, this);
+                    checkOverrides();
+                    shortcuts = !builtinOverridden;
+                    verified = stackVerified;
+                    checkStack = checkStack || !verified;
+                    break;
+                case Opcodes.PARAM: Rayscode.PARAM.execute(stack, iterator, this); break;
+                case Opcodes.ENDFUNC: Rayscode.ENDFUNC.execute(stack, iterator, this); break;
+                default:
+                    int methodSlot = program.getMethodSlot(index);
+                    if(methodSlot >= 0 && methods.get(methodSlot) != null){
+                        methods.get(methodSlot).getFunction().execute(stack, iterator, this);
+                    } else {
+                        iterator.get().getFunction().execute(stack, iterator, this);
+                    }
+                    break;
+            }
+            if(isPaused()){
+                return;
+            }
+            index = iterator.getCurrentIndex() + 1;
+            checkLimits(1, checkStack);
+            if(callee != null || hot || meter.yielded){
+                break;
+            }
+        }
+        iterator.jumpTo(index);
+    }
+
+    private void checkOverrides(){
+        if(!overridesChecked){
+            builtinOverridden = program.isAnyBuiltinOverridden(this::hasMethod);
+            stackVerified = !builtinOverridden && program.isStackVerified(this::hasMethod);
+            overridesChecked = true;
+        }
+    }
+
+    //Run an instruction the stack verifier proved has the values it needs, without checking for them.
+    //Returns false if the instruction can't be run this way, in which case it has to be run as usual.
+    private boolean runVerified(int opcode){
+        switch(opcode < 0 ? ~opcode : opcode){
+            case Opcodes.ADD: operate(Opcodes.ADD); return true;
+            case Opcodes.SUBTRACT: operate(Opcodes.SUBTRACT); return true;
+            case Opcodes.MULTIPLY: operate(Opcodes.MULTIPLY); return true;
+            case Opcodes.DIVIDE: operate(Opcodes.DIVIDE); return true;
+            case Opcodes.OUTPUT: addOutputString((char) stack.pop().intValueExact()); return true;
+            case Opcodes.SWAP: stack.swap(); return true;
+            case Opcodes.POP: stack.drop(); return true;
+            case Opcodes.DUPLICATE: stack.duplicate(); return true;
+            case Opcodes.ROLL: stack.roll(); return true;
+            default: return false;
+        }
+    }
+
+    //Run a shortcut instead of the instructions it stands in for, if the stack and variables have what they need.
+    //Returns the index to carry on from, or -1 if the shortcut can't be run, in which case the instructions have to be
+    //run one by one, so they fail the way they should.
+    int runShortcut(Shortcut shortcut){
+        if(stack.size() < shortcut.getArguments() || stack.totalSize() + shortcut.getGrowth() > meter.config.getMaxStackSize()){
+            return -1;
+        }
+        switch(shortcut.getOpcode()){
+            case Opcodes.LITERALS:
+                for(int idx = 0; idx < shortcut.getNumberOfLiterals(); idx++){
+                    stack.push(shortcut.getLiteral(idx));
+                }
+                break;
+            case Opcodes.SHIFT_LEFT:
+                shiftLeft(shortcut.getOperand());
+                break;
+            case Opcodes.SHIFT_RIGHT:
+                shiftRight(shortcut.getOperand());
+                break;
+            case Opcodes.LITERAL_OPERATION:
+                if(shortcut.getOperand() == Opcodes.DIVIDE && stack.peekSignum() == 0){
+                    return -1;
+                }
+                operate(shortcut.getOperand(), shortcut.getLiteral(0), true);
+                break;
+            case Opcodes.OPERATION_LITERAL:
+                operate(shortcut.getOperand(), shortcut.getLiteral(0), false);
+                break;
+            case Opcodes.DUPLICATE_IF:
+                stack.duplicate();
+                return stack.peekSignum() > 0 ? shortcut.getOperand() + 1 : shortcut.getEnd();
+            case Opcodes.VARIABLE_ADD:
+                BigInteger value = variables.get(shortcut.getOperand());
+                //A method bound to the variable's name runs instead of it, even if the variable has a value. Without
+                //a value, the variable could fail too. Either way, it has to be run as usual.
+                if(value == null || methods.get(shortcut.getOperand()) != null){
+                    return -1;
+                }
+                operate(Opcodes.ADD, value, true);
+                break;
+            case Opcodes.ASSIGN_POP:
+                variables.set(shortcut.getOperand(), stack.peek());
+                stack.drop();
+                break;
+            default:
+                //SKIP leaves the stack as it is.
+                break;
+        }
+        return shortcut.getEnd();
+    }
+
+    //Run ADD, SUBTRACT, MULTIPLY or DIVIDE on the top two values of the stack, just as the operator would.
+    private void operate(int operation){
+        if(stack.isLong(0) && stack.isLong(1)){
+            long first = stack.popLong();
+            long second = stack.popLong();
+            try {
+                stack.push(operate(operation, first, second));
+            } catch (ArithmeticException ex){
+                stack.push(operate(operation, RayscodeStack.valueOf(first), RayscodeStack.valueOf(second)));
+            }
+        } else {
+            BigInteger first = stack.pop();
+            stack.push(operate(operation, first, stack.pop()));
+        }
+    }
+
+    //Run ADD, SUBTRACT, MULTIPLY or DIVIDE on the top of the stack and a literal, which is either the first value the
+    //operator would pop, or the second. Like the operators, this only uses BigIntegers if longs would overflow.
+    private void operate(int operation, BigInteger literal, boolean literalFirst){
+        if(stack.isLong(0) && literal.bitLength() < Long.SIZE){
+            long value = stack.popLong();
+            long first = literalFirst ? literal.longValue() : value;
+            long second = literalFirst ? value : literal.longValue();
+            try {
+                stack.push(operate(operation, first, second));
+            } catch (ArithmeticException ex){
+                stack.push(operate(operation, RayscodeStack.valueOf(first), RayscodeStack.valueOf(second)));
+            }
+        } else {
+            BigInteger value = stack.pop();
+            stack.push(literalFirst ? operate(operation, literal, value) : operate(operation, value, literal));
+        }
+    }
+
+    private static long operate(int operation, long first, long second){
+        switch(operation){
+            case Opcodes.ADD: return Math.addExact(first, second);
+            case Opcodes.SUBTRACT: return Math.subtractExact(first, second);
+            case Opcodes.MULTIPLY: return Math.multiplyExact(first, second);
+            default:
+                //The only division which overflows.
+                if(first == Long.MIN_VALUE && second == -1){
+                    throw new ArithmeticException("long overflow");
+                }
+                return first / second;
+        }
+    }
+
+    private static BigInteger operate(int operation, BigInteger first, BigInteger second){
+        switch(operation){
+            case Opcodes.ADD: return first.add(second);
+            case Opcodes.SUBTRACT: return first.subtract(second);
+            case Opcodes.MULTIPLY: return first.multiply(second);
+            default: return first.divide(second);
+        }
+    }
+
+    //Multiply the top of the stack by 2^shift.
+    private void shiftLeft(int shift){
+        if(stack.isLong(0) && shift < Long.SIZE - 1){
+            long value = stack.popLong();
+            long shifted = value << shift;
+            if(shifted >> shift == value){
+                stack.push(shifted);
+            } else {
+                stack.push(RayscodeStack.valueOf(value).shiftLeft(shift));
+            }
+        } else {
+            stack.push(stack.pop().shiftLeft(shift));
+        }
+    }
+
+    //Divide the top of the stack by 2^shift. Like DIVIDE, this rounds towards zero, where shifting alone rounds down.
+    private void shiftRight(int shift){
+        if(stack.isLong(0) && shift < Long.SIZE - 1){
+            long value = stack.popLong();
+            long shifted = value >> shift;
+            if(value < 0 && (value & ((1L << shift) - 1)) != 0){
+                shifted++;
+            }
+            stack.push(shifted);
+        } else {
+            BigInteger value = stack.pop();
+            stack.push(value.signum() < 0 ? value.negate().shiftRight(shift).negate() : value.shiftRight(shift));
+        }
+    }
+
+    //Run compiled code, until this evaluator finishes, waits for input, or calls a function.
+    private void executeCompiled(){
+        CompiledCode code = BytecodeCompiler.compile(program);
+        if(code == null){
+            executeOpcodes();
+            return;
+        }
+        iterator.jumpTo(code.run(this, iterator.getCurrentIndex()));
+    }
+
+    //Run code by opcode until it's hot, then as compiled code, unless a method overrides any of its instructions.
+    //Compiled code stops after each STARTFUNC, since that's the only way a method can be bound, so the check is made
+    //again before any overridden instruction is run.
+    private void executeTiered(){
+        checkOverrides();
+        if(profile.isHot() && !builtinOverridden){
+            CompiledCode code = BytecodeCompiler.compileSpecialized(program);
+            if(code != null){
+                iterator.jumpTo(code.run(this, iterator.getCurrentIndex()));
+                return;
+            }
+        }
+        executeOpcodes();
+    }
+
+    //Check the limits once an instruction has run. Compiled code calls this too.
+    void checkLimits(){
+        checkLimits(1, true);
+    }
+
+    //Limit the stack size so people can't effectively DOS my machine.
+    //Every function call shares the stack, so this covers the whole call chain. Code proven to stay under the limit
+    //doesn't need it checked. The other limits are checked by the meter, once the instructions run burn its fuel.
+    //Memory is checked every time, since a few multiplications of a big enough number can use up gigabytes, no
+    //matter how small the stack is. Both it and the peak only have to be looked at when the peak goes up.
+    void checkLimits(int instructions, boolean checkStack){
+        Meter meter = this.meter;
+        if(checkStack && stack.totalSize() > meter.config.getMaxStackSize()){
+            throw new IllegalStateException("Stack is too large, must be less than " + meter.config.getMaxStackSize() + " elements");
+        }
+        long memory = stack.getMemory() + variables.getMemory();
+        if(memory > meter.peakMemory){
+            meter.peakMemory = memory;
+            if(memory > meter.config.getMaxMemory()){
+                throw new IllegalStateException("Code is using too much memory, must be less than " + meter.config.getMaxMemory() + " bytes");
+            }
+        }
+        meter.fuel -= instructions;
+        if(meter.fuel <= 0){
+            meter.refuel();
+        }
+    }
+
+    //Check if the slice of instructions evaluate() was asked to run is used up. Compiled code checks this at the end of
+    //each loop, since nothing else it runs can go on for long.
+    boolean isYielding(){
+        return meter.yielded;
+    }
+
+    //Finish a function call, and get the evaluator which called it.
+    private RayscodeEvaluator returnToCaller(){
+        exitScope();
+        return caller;
+    }
+
+    //For compiled code, which runs the instructions itself.
+    RayscodeStack getStack(){
+        return stack;
+    }
+
+    EvaluatorIterator<RayscodeFunctionMetadata> getIterator(){
+        return iterator;
+    }
+
+    RayscodeProgram getProgram(){
+        return program;
+    }
+
+    boolean isCalling(){
+        return callee != null;
+    }
+
+    /**
+     * Get the index a control structure jumps to.
+     * @param index The index of the control structure.
+     * @return The index to jump to, or -1 if the structure has no match.
+     */
+    public int getJumpTarget(int index){
+        return program.getJumpTarget(index);
+    }
+
+    /**
+     * Check if the loop ending at an index is safe to repeat.
+     * @param index The index of the ENDLOOP.
+     * @return True if the loop passed the loop safety check.
+     */
+    public boolean isSafeLoop(int index){
+        return program.isSafeLoop(index);
+    }
+
+    /**
+     * Get the function declared by a STARTFUNC.
+     * @param index The index of the STARTFUNC.
+     * @return The declared function.
+     * @throws IllegalArgumentException If the declaration is malformed.
+     */
+    public RayscodeFunctionMetadata getDeclaredFunction(int index){
+        return program.getFunction(index);
+    }
+
+    /**
+     * Get the slot of the variable an instruction reads or assigns.
+     * @param index The index of the instruction.
+     * @return The variable slot, or -1 if the instruction has none.
+     */
+    public int getVariableSlot(int index){
+        return program.getVariableSlot(index);
+    }
+
+    /**
+     * Get the variable and method names this evaluator's code uses.
+     * @return The symbol table.
+     */
+    public SymbolTable getSymbols(){
+        return program.getSymbols();
+    }
+
+    public boolean hasVariableValue(int slot){
+        return variables.get(slot) != null;
+    }
+
     public boolean hasVariableValue(String name){
-        return variables.containsKey(name);
+        int slot = program.getSymbols().getSlot(name);
+        if(slot < 0){
+            return namedVariables != null && namedVariables.containsKey(name);
+        }
+        return hasVariableValue(slot);
+    }
+
+    public BigInteger getVariableValue(int slot){
+        if(variables.get(slot) != null){
+            return variables.get(slot);
+        } else {
+            throw new IllegalArgumentException("No variable called " + program.getSymbols().getName(slot));
+        }
     }
 
     public BigInteger getVariableValue(String name){
-        if(variables.containsKey(name)){
-            return variables.get(name);
+        int slot = program.getSymbols().getSlot(name);
+        if(slot < 0 && hasVariableValue(name)){
+            return namedVariables.get(name);
+        } else if(hasVariableValue(name)){
+            return variables.get(slot);
         } else {
             throw new IllegalArgumentException("No variable called " + name);
         }
     }
 
-    public boolean hasMethod(String name){return methods.containsKey(name);}
+    public boolean hasMethod(int slot){
+        return methods.get(slot) != null;
+    }
+
+    public boolean hasMethod(String name){
+        int slot = program.getSymbols().getSlot(name);
+        if(slot < 0){
+            return namedMethods != null && namedMethods.containsKey(name);
+        }
+        return hasMethod(slot);
+    }
+
+    public RayscodeFunctionMetadata getMethod(int slot){
+        if(methods.get(slot) != null){
+            return methods.get(slot);
+        } else {
+            throw new IllegalArgumentException("No method called " + program.getSymbols().getName(slot));
+        }
+    }
 
     public RayscodeFunctionMetadata getMethod(String name){
-        if(methods.containsKey(name)){
-            return methods.get(name);
+        int slot = program.getSymbols().getSlot(name);
+        if(slot < 0 && hasMethod(name)){
+            return namedMethods.get(name);
+        } else if(hasMethod(name)){
+            return methods.get(slot);
         } else {
             throw new IllegalArgumentException("No method called " + name);
         }
     }
 
+    public void setVariableValue(int slot, BigInteger value) {
+        variables.set(slot, value);
+    }
+
+    /**
+     * Set a variable by name. If our code never uses the name, the value is kept by name instead, where any function
+     * this evaluator calls whose code does use it can see it.
+     * @param variableName The name of the variable.
+     * @param value The value.
+     */
     public void setVariableValue(String variableName, BigInteger value) {
-        variables.put(variableName, value);
+        int slot = program.getSymbols().getSlot(variableName);
+        if(slot >= 0){
+            setVariableValue(slot, value);
+        } else {
+            if(namedVariables == null){
+                namedVariables = new HashMap<>();
+            }
+            namedVariables.put(variableName, value);
+        }
     }
 
+    public void setMethod(int slot, RayscodeFunctionMetadata function){
+        methods.set(slot, function);
+        overridesChecked = false;
+    }
+
+    /**
+     * Set a method by name. If our code never uses the name, the method is kept by name instead, where any function
+     * this evaluator calls whose code does use it can see it.
+     * @param method The name of the method.
+     * @param function The method.
+     */
     public void setMethod(String method, RayscodeFunctionMetadata function){
-        methods.put(method, function);
+        int slot = program.getSymbols().getSlot(method);
+        if(slot >= 0){
+            setMethod(slot, function);
+        } else {
+            if(namedMethods == null){
+                namedMethods = new HashMap<>();
+            }
+            namedMethods.put(method, function);
+        }
     }
 
     public String getVars(){
-        return variables.toString();
+        Map<String, BigInteger> vars = namedVariables == null ? new HashMap<>() : new HashMap<>(namedVariables);
+        //Slots past the end of our own symbol table belong to a caller, and aren't named here.
+        for(int slot = 0; slot < program.getSymbols().size(); slot++){
+            if(variables.get(slot) != null){
+                vars.put(program.getSymbols().getName(slot), variables.get(slot));
+            }
+        }
+        return vars.toString();
+    }
+
+    /**
+     * Stop this evaluator, and any function it's running. This can be called from any thread.
+     * The evaluation fails with an IllegalStateException within CHECK_INTERVAL instructions, and any later call to
+     * evaluate() fails straight away.
+     */
+    public void cancel(){
+        meter.cancelled = true;
+    }
+
+    /**
+     * Check if this evaluator has been cancelled.
+     * @return True if cancel() has been called.
+     */
+    public boolean isCancelled(){
+        return meter.cancelled;
+    }
+
+    /**
+     * Get the number of instructions this evaluator has run, including those run by the functions it called, over
+     * every call to evaluate(). A shortcut counts as every instruction it stands in for. Compiled code doesn't count
+     * the instructions which only mark where to jump, so the count can be a little lower with COMPILED or TIERED.
+     * @return The number of instructions run.
+     */
+    public long getInstructionCount(){
+        return meter.getInstructions();
+    }
+
+    /**
+     * Get roughly the most memory the stack and variables have taken up, including those of the functions this
+     * evaluator called, over every call to evaluate(). Values are weighed by RayscodeStack.sizeOf(), so a BigInteger
+     * counts for the bits in it, and memory is only looked at once each instruction (or shortcut) has run.
+     * @return The peak memory, in bytes.
+     */
+    public long getPeakMemory(){
+        return meter.peakMemory;
+    }
+
+    /**
+     * Get the time spent running the code, over every call to evaluate() since it last started, or was resumed from
+     * input. Time in between slices isn't counted, and neither is the call running now, if there is one.
+     * @return The time, in milliseconds.
+     */
+    public long getElapsedTime(){
+        return meter.elapsed;
+    }
+
+    /**
+     * Get the limits this evaluator, and every function it calls, runs under.
+     * @return The config.
+     */
+    public EvaluatorConfig getConfig(){
+        return meter.config;
     }
 
     public boolean isPaused() {
         return paused;
     }
 
+    /**
+     * Check if the last call to evaluate() stopped because it ran out of instructions, before the code finished or
+     * paused for input. Calling evaluate() again carries on from where it stopped.
+     * @return True if this evaluator yielded.
+     */
+    public boolean isYielded(){
+        return suspended != null;
+    }
+
     public void setPaused(boolean paused) {
         this.paused = paused;
     }
@@ -0,0 +1,474 @@
+package lucbui.rayscode.evaluator;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The stack raysCode operates on.
+ *
+ * This is a ring buffer backed by an array, so pushing and popping don't allocate anything, and values can be placed
+ * on the bottom of the stack (for raysThump) as quickly as they can be placed on top. The buffer doubles in size
+ * if it ever fills up.
+ *
+ * Values are kept as primitive longs whenever they fit, and only stored as BigIntegers when they don't. Callers can
+ * check isLong() to do arithmetic without allocating, and anything that pops a BigInteger gets the same value it
+ * would have if everything were a BigInteger.
+ *
+ * Function calls share one stack. Each call gets a frame, which starts at a base position in the stack, and every
+ * operation only sees the values in the current frame. The stack as a whole can be measured with totalSize().
+ *
+ * The bottom frame can roll by moving the bottom of the ring buffer. Any other frame sits on top of the one before it,
+ * so the first time it rolls, it gets a ring window of its own: the positions from its base up, with room to spare,
+ * which it can roll around in the same way. The window is only laid back out in order when the frame fills it, or
+ * when a frame is entered or exited, so rolling never has to shift the rest of the frame.
+ *
+ * The stack also keeps track of roughly how much memory its values take up, since a few huge BigIntegers can take up
+ * far more than thousands of longs.
+ */
+public class RayscodeStack {
+
+    //Canonical BigIntegers for small values, so popping them as BigIntegers doesn't allocate.
+    private static final int SMALL_VALUE_MIN = -128;
+    private static final int SMALL_VALUE_MAX = 1024;
+    private static final BigInteger[] SMALL_VALUES = new BigInteger[SMALL_VALUE_MAX - SMALL_VALUE_MIN + 1];
+    static {
+        for(int value = SMALL_VALUE_MIN; value <= SMALL_VALUE_MAX; value++){
+            SMALL_VALUES[value - SMALL_VALUE_MIN] = BigInteger.valueOf(value);
+        }
+    }
+
+    //Roughly how much memory a BigInteger takes up, besides its magnitude: the object, and the array header.
+    private static final int BIG_VALUE_BYTES = 56;
+
+    private long[] values;
+    //Only non-null in positions holding a value which doesn't fit in a long.
+    private BigInteger[] bigValues;
+    //Index of the bottom-most element. The top-most element sits at bottom + size - 1, wrapped around the array.
+    private int bottom;
+    private int size;
+    //Position, counted up from the bottom, where the current frame starts.
+    private int base;
+    //The size of the current frame's ring window, a power of two, or 0 if it doesn't have one and is laid out in order.
+    private int frameCapacity;
+    //Where the bottom of the current frame is in its window.
+    private int frameStart;
+    //The memory taken up by every BigInteger in bigValues.
+    private long bigValueBytes;
+
+    /**
+     * Create a stack.
+     * @param expectedSize The number of elements to make room for up front.
+     */
+    public RayscodeStack(int expectedSize){
+        int capacity = Math.max(Integer.highestOneBit(Math.max(expectedSize, 1) - 1) << 1, 2);
+        values = new long[capacity];
+        bigValues = new BigInteger[capacity];
+    }
+
+    /**
+     * Convert a long into a BigInteger, using a cached instance if possible.
+     * @param value The value to convert.
+     * @return The value as a BigInteger.
+     */
+    public static BigInteger valueOf(long value){
+        if(value >= SMALL_VALUE_MIN && value <= SMALL_VALUE_MAX){
+            return SMALL_VALUES[(int) value - SMALL_VALUE_MIN];
+        }
+        return BigInteger.valueOf(value);
+    }
+
+    /**
+     * Approximate the memory a BigInteger takes up.
+     * @param value The value.
+     * @return The number of bytes, give or take.
+     */
+    public static long sizeOf(BigInteger value){
+        return BIG_VALUE_BYTES + ((value.bitLength() + 31) >>> 5) * (long) Integer.BYTES;
+    }
+
+    /**
+     * Push a value onto the top of the stack.
+     * @param value The value to push.
+     */
+    public void push(long value){
+        makeRoom();
+        int index = index(size);
+        values[index] = value;
+        bigValues[index] = null;
+        size++;
+    }
+
+    /**
+     * Push a value onto the top of the stack.
+     * @param value The value to push.
+     */
+    public void push(BigInteger value){
+        makeRoom();
+        set(index(size), value);
+        size++;
+    }
+
+    /**
+     * Remove the value on the top of the stack.
+     * @return The value removed.
+     */
+    public BigInteger pop(){
+        if(size == base){
+            throw new NoSuchElementException();
+        }
+        size--;
+        int top = index(size);
+        BigInteger value = get(top);
+        clear(top);
+        return value;
+    }
+
+    /**
+     * Remove the value on the top of the stack, which must fit in a long.
+     * @return The value removed.
+     * @see #isLong(int)
+     */
+    public long popLong(){
+        if(size == base){
+            throw new NoSuchElementException();
+        }
+        size--;
+        int top = index(size);
+        clear(top);
+        return values[top];
+    }
+
+    /**
+     * Remove the value on the top of the stack, without converting it to anything.
+     */
+    public void drop(){
+        if(size == base){
+            throw new NoSuchElementException();
+        }
+        size--;
+        clear(index(size));
+    }
+
+    /**
+     * Get the value on the top of the stack, without removing it.
+     * @return The top-most value, or null if the stack is empty.
+     */
+    public BigInteger peek(){
+        return size == base ? null : get(index(size - 1));
+    }
+
+    /**
+     * Get the sign of the value on the top of the stack, without removing it.
+     * @return -1, 0, or 1 if the top-most value is negative, zero, or positive.
+     */
+    public int peekSignum(){
+        if(size == base){
+            throw new NoSuchElementException();
+        }
+        int top = index(size - 1);
+        return bigValues[top] == null ? Long.signum(values[top]) : bigValues[top].signum();
+    }
+
+    /**
+     * Check if a value on the stack fits in a long.
+     * @param depth How far down the stack to check. 0 is the top-most value.
+     * @return True if the value fits in a long.
+     */
+    public boolean isLong(int depth){
+        return bigValues[index(size - 1 - depth)] == null;
+    }
+
+    /**
+     * Place a value at the bottom of the current frame.
+     * @param value The value to place.
+     */
+    public void addLast(BigInteger value){
+        push(value);
+        roll();
+    }
+
+    /**
+     * Move the value on the top of the current frame to the bottom.
+     */
+    public void roll(){
+        if(size == base){
+            throw new NoSuchElementException();
+        }
+        int newBottom;
+        int top;
+        if(base == 0){
+            //The frame starts at the bottom of the whole stack, so the ring buffer can wrap around.
+            top = index(size - 1);
+            bottom = (bottom - 1) & (values.length - 1);
+            newBottom = bottom;
+        } else {
+            //Otherwise, the frame wraps around a window of its own.
+            if(frameCapacity == 0){
+                openWindow();
+            }
+            top = index(size - 1);
+            frameStart = (frameStart - 1) & (frameCapacity - 1);
+            newBottom = index(base);
+        }
+        //If the ring is full, the top is already just below the bottom, so there is nothing to move.
+        if(newBottom != top){
+            values[newBottom] = values[top];
+            bigValues[newBottom] = bigValues[top];
+            bigValues[top] = null;
+        }
+    }
+
+    //Give the current frame a window to roll around in, with room for it to grow before it has to be laid out again.
+    private void openWindow(){
+        int capacity = Integer.highestOneBit(size - base) << 1;
+        while(base + capacity > values.length){
+            grow();
+        }
+        frameCapacity = capacity;
+        frameStart = 0;
+    }
+
+    //Lay the current frame's values back out in order, from its base up, and drop its window.
+    //The values run from frameStart to the end of the window, and then wrap around to the start of it, with the
+    //free positions in between. The first run is moved down next to the second, and then the two are swapped around.
+    private void closeWindow(){
+        int count = size - base;
+        int first = Math.min(count, frameCapacity - frameStart);
+        int second = count - first;
+        for(int offset = 0; offset < first; offset++){
+            int from = windowIndex(frameStart + offset);
+            int to = windowIndex(second + offset);
+            if(from != to){
+                values[to] = values[from];
+                bigValues[to] = bigValues[from];
+                bigValues[from] = null;
+            }
+        }
+        if(second > 0){
+            reverseWindow(0, second);
+            reverseWindow(second, count);
+            reverseWindow(0, count);
+        }
+        frameCapacity = 0;
+        frameStart = 0;
+    }
+
+    //Convert a position in the current frame's window into an index of the array.
+    private int windowIndex(int offset){
+        return (bottom + base + offset) & (values.length - 1);
+    }
+
+    //Reverse the positions of the current frame's window from one offset, up to but not including another.
+    private void reverseWindow(int from, int to){
+        for(int low = from, high = to - 1; low < high; low++, high--){
+            swapIndices(windowIndex(low), windowIndex(high));
+        }
+    }
+
+    //Make sure there's room to push one more value onto the current frame.
+    private void makeRoom(){
+        if(frameCapacity != 0 && size - base == frameCapacity){
+            closeWindow();
+        }
+        if(size == values.length){
+            grow();
+        }
+    }
+
+    /**
+     * Swap the top two values on the stack.
+     */
+    public void swap(){
+        if(size - base < 2){
+            throw new NoSuchElementException();
+        }
+        swapIndices(index(size - 1), index(size - 2));
+    }
+
+    /**
+     * Push a copy of the value on the top of the stack.
+     */
+    public void duplicate(){
+        if(size == base){
+            throw new NoSuchElementException();
+        }
+        makeRoom();
+        int top = index(size - 1);
+        int copy = index(size);
+        values[copy] = values[top];
+        bigValues[copy] = bigValues[top];
+        if(bigValues[top] != null){
+            //The copy shares the original's magnitude, but anything done to it makes a new one, so it counts in full.
+            bigValueBytes += sizeOf(bigValues[top]);
+        }
+        size++;
+    }
+
+    /**
+     * Get the number of values in the current frame.
+     * @return The frame size.
+     */
+    public int size(){
+        return size - base;
+    }
+
+    /**
+     * Get the number of values on the stack, in every frame.
+     * @return The total stack size.
+     */
+    public int totalSize(){
+        return size;
+    }
+
+    /**
+     * Approximate the memory taken up by the values on the stack, in every frame.
+     * @return The number of bytes, give or take.
+     */
+    public long getMemory(){
+        return size * (long) Long.BYTES + bigValueBytes;
+    }
+
+    /**
+     * Check if the current frame is empty.
+     * @return True if there are no values in the current frame.
+     */
+    public boolean isEmpty(){
+        return size == base;
+    }
+
+    /**
+     * Start a new frame, holding the top values of the current one.
+     * The values are reversed, so the top-most value becomes the bottom of the new frame.
+     * @param numberOfValues The number of values to move into the new frame.
+     * @return The base of the old frame, to pass to exitFrame.
+     */
+    public int enterFrame(int numberOfValues){
+        if(size - base < numberOfValues){
+            throw new NoSuchElementException();
+        }
+        if(frameCapacity != 0){
+            closeWindow();
+        }
+        int oldBase = base;
+        base = size - numberOfValues;
+        reverseFrame();
+        return oldBase;
+    }
+
+    /**
+     * End the current frame, leaving its values on top of the frame before it.
+     * @param oldBase The value returned by enterFrame.
+     * @param reverse If true, the values are reversed, so the bottom value of the ended frame becomes the top-most value.
+     */
+    public void exitFrame(int oldBase, boolean reverse){
+        //The frame before this one was laid out in order when this one was entered, so it has no window to restore.
+        if(frameCapacity != 0){
+            closeWindow();
+        }
+        if(reverse){
+            reverseFrame();
+        }
+        base = oldBase;
+    }
+
+    /**
+     * Reverse the order of the values in the current frame.
+     */
+    public void reverseFrame(){
+        for(int low = base, high = size - 1; low < high; low++, high--){
+            swapIndices(index(low), index(high));
+        }
+    }
+
+    //Convert a position, counted up from the bottom of the stack, into an index of the array.
+    private int index(int position){
+        if(frameCapacity != 0 && position >= base){
+            position = base + ((position - base + frameStart) & (frameCapacity - 1));
+        }
+        return (bottom + position) & (values.length - 1);
+    }
+
+    private void swapIndices(int first, int second){
+        long value = values[first];
+        values[first] = values[second];
+        values[second] = value;
+        BigInteger bigValue = bigValues[first];
+        bigValues[first] = bigValues[second];
+        bigValues[second] = bigValue;
+    }
+
+    private BigInteger get(int index){
+        return bigValues[index] == null ? valueOf(values[index]) : bigValues[index];
+    }
+
+    //Store a value, as a long if it fits.
+    private void set(int index, BigInteger value){
+        if(value.bitLength() < Long.SIZE){
+            values[index] = value.longValue();
+            bigValues[index] = null;
+        } else {
+            bigValues[index] = value;
+            bigValueBytes += sizeOf(value);
+        }
+    }
+
+    //Forget the BigInteger in a position which no longer holds a value, if there is one.
+    private void clear(int index){
+        if(bigValues[index] != null){
+            bigValueBytes -= sizeOf(bigValues[index]);
+            bigValues[index] = null;
+        }
+    }
+
+    //Double the size of the arrays, unwrapping the elements so the bottom is at index 0, and the current frame is laid
+    //out in order.
+    private void grow(){
+        long[] newValues = new long[values.length << 1];
+        BigInteger[] newBigValues = new BigInteger[values.length << 1];
+        for(int position = 0; position < size; position++){
+            newValues[position] = values[index(position)];
+            newBigValues[position] = bigValues[index(position)];
+        }
+        values = newValues;
+        bigValues = newBigValues;
+        bottom = 0;
+        frameCapacity = 0;
+        frameStart = 0;
+    }
+
+    /**
+     * Copy the values in the current frame, from top to bottom.
+     * @return The values, which can't be changed, and don't change with the stack.
+     */
+    public List<BigInteger> toList(){
+        List<BigInteger> list = new ArrayList<>(size - base);
+        for(int position = size - 1; position >= base; position--){
+            list.add(get(index(position)));
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Lists the current frame from top to bottom.
+     * @return The frame as a String.
+     */
+    @Override
+    public String toString(){
+        StringBuilder builder = new StringBuilder("[");
+        for(int position = size - 1; position >= base; position--){
+            int index = index(position);
+            if(bigValues[index] == null){
+                builder.append(values[index]);
+            } else {
+                builder.append(bigValues[index]);
+            }
+            if(position > base){
+                builder.append(", ");
+            }
+        }
+        return builder.append("]").toString();
+    }
+}
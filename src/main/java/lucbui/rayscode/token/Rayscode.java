@@ -2,9 +2,12 @@ package lucbui.rayscode.token;
 
 import lucbui.rayscode.evaluator.EvaluatorIterator;
 import lucbui.rayscode.evaluator.RayscodeEvaluator;
+import lucbui.rayscode.evaluator.RayscodeStack;
 
 import java.math.BigInteger;
 import java.util.*;
+import java.util.function.BinaryOperator;
+import java.util.function.LongBinaryOperator;
 import java.util.stream.Stream;
 
 /**
@@ -17,12 +20,9 @@ public enum Rayscode implements RayscodeFunction {
      * A literal two, which places a 2 on the stack.
      */
     TWO() {
-        //Cache result so we don't invoke valueOf each time.
-        BigInteger two = BigInteger.valueOf(2);
-
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
-            stack.push(two);
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+            stack.push(2);
         }
 
         @Override
@@ -44,12 +44,9 @@ public enum Rayscode implements RayscodeFunction {
      * A literal three, which places a 3 on the stack.
      */
     THREE() {
-        //Cache result so we don't invoke valueOf each time.
-        BigInteger three = BigInteger.valueOf(3);
-
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
-            stack.push(three);
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+            stack.push(3);
         }
 
         @Override
@@ -72,8 +69,8 @@ public enum Rayscode implements RayscodeFunction {
      */
     SIZE() {
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
-            stack.push(BigInteger.valueOf(stack.size()));
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+            stack.push(stack.size());
         }
 
         @Override
@@ -96,12 +93,13 @@ public enum Rayscode implements RayscodeFunction {
      */
     VARIABLE(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             String varName = iterator.get().getId();
-            if(evaluator.hasVariableValue(varName)) {
-                stack.push(evaluator.getVariableValue(varName));
-            } else if(evaluator.hasMethod(varName)){
-                evaluator.getMethod(varName).getFunction().execute(stack, iterator, evaluator);
+            int slot = evaluator.getVariableSlot(iterator.getCurrentIndex());
+            if(evaluator.hasVariableValue(slot)) {
+                stack.push(evaluator.getVariableValue(slot));
+            } else if(evaluator.hasMethod(slot)){
+                evaluator.getMethod(slot).getFunction().execute(stack, iterator, evaluator);
             } else {
                 //If there isn't a definition for this yet, and the next instruction isn't assignment, we are in error.
                 if(iterator.getNext().getFunction() != Rayscode.ASSIGNMENT){
@@ -136,9 +134,9 @@ public enum Rayscode implements RayscodeFunction {
      */
     ADD() {
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             RayscodeFunction.requiresArguments(stack, 2, iterator, evaluator);
-            stack.push(stack.pop().add(stack.pop()));
+            arithmetic(stack, Math::addExact, BigInteger::add);
         }
 
         @Override
@@ -162,9 +160,9 @@ public enum Rayscode implements RayscodeFunction {
      */
     SUBTRACT() {
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             RayscodeFunction.requiresArguments(stack, 2, iterator, evaluator);
-            stack.push(stack.pop().subtract(stack.pop()));
+            arithmetic(stack, Math::subtractExact, BigInteger::subtract);
         }
 
         @Override
@@ -188,9 +186,9 @@ public enum Rayscode implements RayscodeFunction {
      */
     MULTIPLY() {
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             RayscodeFunction.requiresArguments(stack, 2, iterator, evaluator);
-            stack.push(stack.pop().multiply(stack.pop()));
+            arithmetic(stack, Math::multiplyExact, BigInteger::multiply);
         }
 
         @Override
@@ -214,9 +212,9 @@ public enum Rayscode implements RayscodeFunction {
      */
     DIVIDE() {
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             RayscodeFunction.requiresArguments(stack, 2, iterator, evaluator);
-            stack.push(stack.pop().divide(stack.pop()));
+            arithmetic(stack, Rayscode::divideExact, BigInteger::divide);
         }
 
         @Override
@@ -239,14 +237,14 @@ public enum Rayscode implements RayscodeFunction {
      */
     INPUT() {
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             if(evaluator.getInputString() == null){
                 evaluator.setPaused(true);
             } else {
                 String s = evaluator.getInputString();
                 evaluator.setInputString(null);
                 iterate(s.length())
-                        .map(i -> BigInteger.valueOf(i < s.length() ? s.charAt(i) : 0))
+                        .mapToLong(i -> i < s.length() ? s.charAt(i) : 0)
                         .forEach(stack::push);
             }
         }
@@ -272,7 +270,7 @@ public enum Rayscode implements RayscodeFunction {
      */
     OUTPUT() {
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             RayscodeFunction.requiresArguments(stack, 1, iterator, evaluator);
             evaluator.addOutputString((char) stack.pop().intValueExact());
         }
@@ -297,12 +295,9 @@ public enum Rayscode implements RayscodeFunction {
      */
     SWAP() {
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             RayscodeFunction.requiresArguments(stack, 2, iterator, evaluator);
-            BigInteger first = stack.pop();
-            BigInteger second = stack.pop();
-            stack.push(first);
-            stack.push(second);
+            stack.swap();
         }
 
         @Override
@@ -325,9 +320,9 @@ public enum Rayscode implements RayscodeFunction {
      */
     POP(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             RayscodeFunction.requiresArguments(stack, 1, iterator, evaluator);
-            stack.pop();
+            stack.drop();
         }
 
         @Override
@@ -350,11 +345,9 @@ public enum Rayscode implements RayscodeFunction {
      */
     DUPLICATE(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             RayscodeFunction.requiresArguments(stack, 1, iterator, evaluator);
-            BigInteger toDuplicate = stack.pop();
-            stack.push(toDuplicate);
-            stack.push(toDuplicate);
+            stack.duplicate();
         }
 
         @Override
@@ -377,9 +370,9 @@ public enum Rayscode implements RayscodeFunction {
      */
     ROLL(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             RayscodeFunction.requiresArguments(stack, 1, iterator, evaluator);
-            stack.addLast(stack.pop());
+            stack.roll();
         }
 
         @Override
@@ -403,11 +396,14 @@ public enum Rayscode implements RayscodeFunction {
      */
     ASSIGNMENT(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             RayscodeFunction.requiresArguments(stack, 1, iterator, evaluator);
-            String varName = iterator.getPrevious().getId();
+            int slot = evaluator.getVariableSlot(iterator.getCurrentIndex());
+            if(slot < 0){
+                throw new IllegalArgumentException(this + " at location " + (iterator.getCurrentIndex() + 1) + " has nothing to assign to");
+            }
             BigInteger value = stack.peek();
-            evaluator.setVariableValue(varName, value);
+            evaluator.setVariableValue(slot, value);
         }
 
         @Override
@@ -434,18 +430,18 @@ public enum Rayscode implements RayscodeFunction {
      */
     IF(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             RayscodeFunction.requiresArguments(stack, 1, iterator, evaluator);
             String id = iterator.get().getId();
-            if(stack.isEmpty() || stack.peek().compareTo(BigInteger.ZERO) <= 0){
+            if(stack.isEmpty() || stack.peekSignum() <= 0){
                 //First Expression. We're already there so don't do anything.
             } else {
                 //Jump to the else or end clause with equivalent ID.
-                if(!iterator.advanceTo(
-                        i -> Objects.equals(i.getId(), id) &&
-                                (i.getFunction() == ELSE || i.getFunction() == ENDIF))){
+                int target = evaluator.getJumpTarget(iterator.getCurrentIndex());
+                if(target < 0){
                     throw new IllegalArgumentException("No END IF or ELSE clause for ID=" + id + " found.");
                 }
+                iterator.jumpTo(target);
             }
         }
 
@@ -477,16 +473,14 @@ public enum Rayscode implements RayscodeFunction {
      */
     ELSE(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             String id = iterator.get().getId();
             //Jump to the endif clause with the matching ID.
-            if(!iterator.advanceTo(
-                    i -> Objects.equals(i.getId(), id) &&
-                            (i.getFunction() == ENDIF))){
+            int target = evaluator.getJumpTarget(iterator.getCurrentIndex());
+            if(target < 0){
                 throw new IllegalArgumentException("No END IF clause for ID=" + id + " found.");
             }
-
-
+            iterator.jumpTo(target);
         }
 
         @Override
@@ -517,7 +511,7 @@ public enum Rayscode implements RayscodeFunction {
      */
     ENDIF(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             //Do nothing. This just marks the end of the if-else block
         }
 
@@ -545,7 +539,7 @@ public enum Rayscode implements RayscodeFunction {
     },
     METHOD(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
 
         }
 
@@ -574,7 +568,7 @@ public enum Rayscode implements RayscodeFunction {
      */
     STARTLOOP(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             //Do nothing. This just marks the start of the loop.
         }
 
@@ -603,19 +597,18 @@ public enum Rayscode implements RayscodeFunction {
      */
     ENDLOOP(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
-            String id = iterator.get().getId();
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             //We need to check for loop safety, to minimize the possibility of infinite loops.
-
-            boolean isSafeLoop = checkForSafeLoop(stack, iterator, evaluator);
-            if(!isSafeLoop){
+            //This is worked out when the code is compiled, so it only needs to be looked up.
+            if(!evaluator.isSafeLoop(iterator.getCurrentIndex())){
                 throw new IllegalArgumentException("Infinite loop condition detected");
             }
 
-            boolean foundLoop = iterator.advanceBackTo(i -> i.getFunction() == STARTLOOP && i.getId().equals(id));
-            if(!foundLoop){
+            int target = evaluator.getJumpTarget(iterator.getCurrentIndex());
+            if(target < 0){
                 throw new IllegalArgumentException("Start of loop not found");
             }
+            iterator.jumpTo(target);
         }
 
         @Override
@@ -640,34 +633,16 @@ public enum Rayscode implements RayscodeFunction {
     },
     STARTFUNC(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
-            iterator.advance();
-            String funcName = iterator.get().getId();
-            if(funcName == null){
-                throw new IllegalArgumentException("Illegal method overwritten!");
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+            //The function was built when the code was compiled, so all that's left is to bind it, and skip its body.
+            int index = iterator.getCurrentIndex();
+            RayscodeFunctionMetadata function = evaluator.getDeclaredFunction(index);
+            //Names which can't be called, like :rays2:, have no slot. Nothing could ever call the function anyway.
+            int funcSlot = evaluator.getVariableSlot(index + 1);
+            if(funcSlot >= 0){
+                evaluator.setMethod(funcSlot, function);
             }
-            List<RayscodeFunctionMetadata> code = new ArrayList<>();
-            int numParams = 0;
-            while(iterator.getNext().getFunction() == PARAM){
-                numParams++;
-                iterator.advance();
-            }
-            iterator.advance();
-            while(iterator.get().getFunction() != ENDFUNC){
-                if(iterator.get().getFunction() == STARTFUNC){
-                    throw new IllegalArgumentException("Function " + funcName + "missing end declaration");
-                }
-                if(iterator.get().getFunction() == PARAM){
-                    throw new IllegalArgumentException("Unexpected parameter declaration");
-                }
-                code.add(iterator.get());
-                iterator.advance();
-                if(iterator.isComplete()){
-                    throw new IllegalArgumentException("Function " + funcName + "missing end declaration");
-                }
-            }
-
-            evaluator.setMethod(funcName, RayscodeFunctionMetadata.make(funcName, new RayscodeCustomFunction(numParams, code)));
+            iterator.jumpTo(evaluator.getJumpTarget(index));
         }
 
         @Override
@@ -690,7 +665,7 @@ public enum Rayscode implements RayscodeFunction {
     },
     PARAM(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             throw new IllegalArgumentException("Unexpected parameter indicator found.");
         }
 
@@ -711,7 +686,7 @@ public enum Rayscode implements RayscodeFunction {
     },
     ENDFUNC(){
         @Override
-        public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
             throw new IllegalArgumentException("Unexpected end of function found.");
         }
 
@@ -731,53 +706,36 @@ public enum Rayscode implements RayscodeFunction {
         }
     };
 
-    private static boolean checkForSafeLoop(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
-        //We can check the safety of a loop, by seeing if the current point is inside of an if-loop.
-        //We do this by moving backwards. If we encounter an ENDIF, we push to the stack. If we encounter an IF, we pop.
-        //If we run out of IDs to pop, we must be in an IF loop:
-        // [STARTLOOP] IF ... ELSE [ENDLOOP] ENDIF => Hits an IF before encountering an ENDIF, inside a conditional.
-        // [STARTLOOP] IF ... ELSE ... ENDIF [ENDLOOP] => Hits an ENDIF followed by an IF, so it was outside of the block.
-        // [STARTLOOP] ... [ENDLOOP] => Never hits an IF, so it is an invalid loop.
-        // IF [STARTLOOP] ELSE [ENDLOOP] ENDIF => Never hits an IF, so it is an invalid loop.
-
-        // We can also test to make sure some sort of "work" is being done between the two loops.
-        int numberOfEncounteredIds = 0;
-        String currentId = iterator.get().getId();
-        int start = -1;
-        boolean safeLoop = false;
-        while(iterator.canGetRelative(start) && !(iterator.getRelative(start).getFunction() == STARTLOOP && Objects.equals(iterator.getRelative(start).getId(), currentId))){
-            RayscodeFunctionMetadata functionToCheck = iterator.getRelative(start);
-            if(functionToCheck.getFunction() == ENDIF){
-                numberOfEncounteredIds++;
-            } else if(functionToCheck.getFunction() == IF){
-                if(numberOfEncounteredIds == 0) {
-                    safeLoop = true;
-                    break;
-                } else {
-                    numberOfEncounteredIds--;
-                }
+    /**
+     * Performs arithmetic on the top two values of the stack, and pushes the result.
+     * If both values fit in a long, the long operation is used. If that overflows (by throwing an ArithmeticException),
+     * the values are promoted to BigIntegers and the BigInteger operation is used instead.
+     * @param stack The stack to operate on.
+     * @param longOperation The operation on longs, which throws an ArithmeticException on overflow.
+     * @param bigOperation The same operation on BigIntegers.
+     */
+    private static void arithmetic(RayscodeStack stack, LongBinaryOperator longOperation, BinaryOperator<BigInteger> bigOperation){
+        if(stack.isLong(0) && stack.isLong(1)){
+            long first = stack.popLong();
+            long second = stack.popLong();
+            try {
+                stack.push(longOperation.applyAsLong(first, second));
+            } catch (ArithmeticException ex){
+                stack.push(bigOperation.apply(RayscodeStack.valueOf(first), RayscodeStack.valueOf(second)));
             }
-            start--;
+        } else {
+            BigInteger first = stack.pop();
+            stack.push(bigOperation.apply(first, stack.pop()));
         }
-        //If something is being created or destroyed, we should be alright. Only when nothing is happening should we worry.
-        return safeLoop && calculateWork(stack, iterator, evaluator) != 0;
     }
 
-    //Calculate the amount of work being done
-    //NOTE: This doesn't take into account if-else loops, so it doesn't give a completely accurate number.
-    //It will *definitely* tell you if nothing is happening though.
-    private static int calculateWork(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator){
-        int workSum = 0;
-        String currentId = iterator.get().getId();
-        int start = -1;
-        while(iterator.canGetRelative(start) && !(iterator.getRelative(start).getFunction() == STARTLOOP && Objects.equals(iterator.getRelative(start).getId(), currentId))){
-            RayscodeFunctionMetadata functionToCheck = iterator.getRelative(start);
-            //The total amount of "work" this function does. >0 means things are being made, <0 means things are being destroyed.
-            int work = functionToCheck.getFunction().getNumberOfReturns() - functionToCheck.getFunction().getNumberOfArguments();
-            workSum += work;
-            start--;
-        }
-        return workSum;
+    //Long division, which throws on overflow like Math.addExact does.
+    //Dividing by zero also throws here, so the BigInteger division can report it the same way it always has.
+    private static long divideExact(long dividend, long divisor){
+        if(divisor == 0 || (dividend == Long.MIN_VALUE && divisor == -1)){
+            throw new ArithmeticException("long overflow");
+        }
+        return dividend / divisor;
     }
 
     /**
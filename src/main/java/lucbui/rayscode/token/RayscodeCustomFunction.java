@@ -1,10 +1,12 @@
 package lucbui.rayscode.token;
 
+import lucbui.rayscode.compiler.RayscodeCompiler;
+import lucbui.rayscode.compiler.RayscodeProgram;
+import lucbui.rayscode.compiler.SymbolTable;
 import lucbui.rayscode.evaluator.EvaluatorIterator;
 import lucbui.rayscode.evaluator.RayscodeEvaluator;
+import lucbui.rayscode.evaluator.RayscodeStack;
 
-import java.math.BigInteger;
-import java.util.Deque;
 import java.util.List;
 import java.util.Objects;
 
@@ -13,28 +15,37 @@ import java.util.Objects;
  */
 public class RayscodeCustomFunction implements RayscodeFunction{
 
-    private int numberOfParameters;
-    private int numberOfReturns;
-    private List<RayscodeFunctionMetadata> functionDefinition;
+    private final int numberOfParameters;
+    private final int numberOfReturns;
+    private final List<RayscodeFunctionMetadata> functionDefinition;
+    private final RayscodeProgram program;
 
     /**
      * Creates a custom function.
      * @param numberOfParameters The number of input parameters.
      * @param functionDefinition The list of functions to execute.
+     * @param symbols The symbol table of the code declaring this function, which the function shares.
      */
-    public RayscodeCustomFunction(int numberOfParameters, List<RayscodeFunctionMetadata> functionDefinition) {
+    public RayscodeCustomFunction(int numberOfParameters, List<RayscodeFunctionMetadata> functionDefinition, SymbolTable symbols) {
         this.numberOfParameters = numberOfParameters;
         this.functionDefinition = functionDefinition;
+        this.program = RayscodeCompiler.compile(functionDefinition, symbols, numberOfParameters);
         this.numberOfReturns = calculateWork(null, new EvaluatorIterator<>(functionDefinition), null);
     }
 
     @Override
-    public void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
-        RayscodeEvaluator functionEvaluator = evaluator.createNewEvaluator(this.numberOfParameters, functionDefinition);
-        Deque<BigInteger> returnStack = functionEvaluator.evaluate();
-        while(!returnStack.isEmpty()){
-            stack.push(returnStack.pop());
-        }
+    public void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator) {
+        //The function runs in its own frame on top of our stack. Whatever it leaves there is its return value.
+        //The evaluator starts running it once this instruction finishes, and comes back here when it's done.
+        evaluator.call(this.numberOfParameters, program);
+    }
+
+    /**
+     * Get the compiled body of this function.
+     * @return The program the function runs when it's called.
+     */
+    public RayscodeProgram getProgram() {
+        return program;
     }
 
     @Override
@@ -60,7 +71,7 @@ public class RayscodeCustomFunction implements RayscodeFunction{
     //Calculate the amount of work being done
     //NOTE: This doesn't take into account if-else loops, so it doesn't give a completely accurate number.
     //It will *definitely* tell you if nothing is happening though.
-    private static int calculateWork(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator){
+    private static int calculateWork(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator){
         int workSum = 0;
         int start = 0;
         while(iterator.canGetRelative(start)){
@@ -2,9 +2,7 @@ package lucbui.rayscode.token;
 
 import lucbui.rayscode.evaluator.EvaluatorIterator;
 import lucbui.rayscode.evaluator.RayscodeEvaluator;
-
-import java.math.BigInteger;
-import java.util.Deque;
+import lucbui.rayscode.evaluator.RayscodeStack;
 
 /**
  * A subinterface to mark certain functions explicitly as RayscodeFunctions
@@ -18,7 +16,7 @@ public interface RayscodeFunction {
      * @param evaluator The evaluator calling this function
      * @return The return values
      */
-    void execute(Deque<BigInteger> stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator);
+    void execute(RayscodeStack stack, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator evaluator);
 
     /**
      * Returns if an ID is required for this particular function. Default to false.
@@ -51,7 +49,7 @@ public interface RayscodeFunction {
      * @param stack The stack to check.
      * @param numberOfArgs The number of arguments needed.
      */
-    static void requiresArguments(Deque<?> stack, int numberOfArgs, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator eval){
+    static void requiresArguments(RayscodeStack stack, int numberOfArgs, EvaluatorIterator<RayscodeFunctionMetadata> iterator, RayscodeEvaluator eval){
         if(stack.size() < numberOfArgs){
             throw new IllegalArgumentException(
                     iterator.get().getFunction() + " at location " + (iterator.getCurrentIndex() + 1) +
@@ -5,8 +5,8 @@ package lucbui.rayscode.token;
  */
 public class RayscodeFunctionMetadata {
 
-    private String id;
-    private RayscodeFunction function;
+    private final String id;
+    private final RayscodeFunction function;
 
     /**
      * Create a RayscodeFunction with metadata.
@@ -0,0 +1,215 @@
+package lucbui.rayscode.evaluator;
+
+import lucbui.rayscode.compiler.RayscodeCompiler;
+import lucbui.rayscode.compiler.RayscodeProgram;
+import lucbui.rayscode.lexer.RayscodeLexer;
+import lucbui.rayscode.token.RayscodeFunctionMetadata;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs raysCode through every evaluator engine, and checks they all give the same stack, output, and errors. Random
+ * code is checked against TOKENS, which every other engine has to match, and longer code against known results.
+ */
+public class EngineComparisonTest {
+
+    private static final int RANDOM_PROGRAMS = 2_000;
+    //Only so many differences are listed, since one bug tends to show up in a lot of programs.
+    private static final int MAX_REPORTED = 10;
+
+    private static final String[] SIMPLE = {
+            "rays2", "rays3", "rays3c", "raysP", "raysI", "raysB", "raysA", "raysQ", "raysShock", "raysD", "raysThump",
+            "raysE"
+    };
+    private static final String[] NAMES = {"raysV", "raysW", "raysF", "raysG", "rays2", "raysP"};
+    private static final EvaluatorConfig CONFIG = EvaluatorConfig.DEFAULT
+            //Some random code will loop forever. Every engine should time out the same way, but there's no need to wait long.
+            .withMaxTimeOfEvaluation(2_000)
+            //Random code is rarely run for long, so TIERED compiles it almost straight away, to compare its compiled code too.
+            .withCompileThreshold(2);
+
+    private static final String COUNTDOWN = "raysH raysF raysShy raysShrug raysT rays2 rays3 raysI raysShock raysI raysF raysFox raysZ ";
+
+    @Test
+    public void randomCodeRunsTheSameOnEveryEngine() throws IOException {
+        Random random = new Random(0);
+        List<String> programs = new ArrayList<>();
+        for(int program = 0; program < RANDOM_PROGRAMS; program++){
+            programs.add(generate(random, 3));
+        }
+        assertSameOnEveryEngine(programs);
+    }
+
+    //Programs which run long enough, and are large enough, for TIERED to compile them, and which cover what each engine
+    //does differently: shortcuts, inlined functions, tail calls, and functions rolling a frame above the bottom one.
+    //Each is checked against what the evaluator gave before there were any other engines, so a bug every engine
+    //shares, TOKENS included, fails too.
+    @Test
+    public void longerCodeRunsTheSameOnEveryEngine(){
+        //A loop, counting down from 200.
+        assertOnEveryEngine("stack=[0] output= paused=false vars={}",
+                literal(200) + " raysC raysShrug raysT rays2 rays3 raysI raysShock raysI rays3 raysShrug rays2 raysFox raysD raysLurk raysFox");
+        //Tail calls, and calls which aren't.
+        assertOnEveryEngine("stack=[0] output= paused=false vars={}", COUNTDOWN + literal(300) + " raysF");
+        assertOnEveryEngine("stack=[0] output= paused=false vars={}",
+                "raysH raysF raysShy raysShrug raysT rays2 rays3 raysI raysShock raysI raysF rays2 raysD raysFox raysZ " + literal(300) + " raysF");
+        //A small function, which is inlined.
+        assertOnEveryEngine("stack=[] output= paused=false vars={}",
+                "raysH raysSquare raysShy raysE raysB raysZ " + repeat("rays3 raysSquare raysD", 50));
+        //A function which reads a variable, so it needs a scope of its own.
+        assertOnEveryEngine("stack=[0] output= paused=false vars={raysV=2}",
+                "rays2 raysV raysLove raysD raysH raysF raysShy raysShrug raysT raysV raysD rays2 rays3 raysI raysShock raysI raysF raysFox raysZ " + literal(100) + " raysF");
+        //A function which rolls its whole frame, with a value left under it by every call.
+        assertOnEveryEngine("stack=[" + values("2", 25) + ", 0, " + values("2", 26) + "] output= paused=false vars={}",
+                "raysH raysF raysShy raysShrug raysT " + repeat("rays2 rays3", 5) + " " + repeat("raysThump", 33) + " " + repeat("raysD", 10) +
+                        " rays2 raysShock rays2 rays3 raysI raysShock raysI raysF rays2 raysD raysFox raysZ rays2 " + literal(50) + " raysF");
+        //Constants with shortcuts, and builtins overridden part way through, which turns the shortcuts off.
+        assertOnEveryEngine("stack=[" + values("1", 20) + ", 2] output= paused=false vars={}",
+                "rays2 " + repeat("raysE rays3 rays3 raysB rays2 raysP rays2 raysB raysShock raysShock raysE raysD raysD raysD", 20) +
+                        " raysH raysP raysShy raysShy raysI raysZ " + repeat("rays3 rays2 raysP", 20));
+        //A variable and a method with the same name, followed by raysP. The method runs, even though the variable has a
+        //value, so the variable's value is never added.
+        assertOnEveryEngine("stack=[5, 3] output= paused=false vars={raysF=3}",
+                "rays3 raysF raysLove raysH raysF rays2 raysZ rays3 raysF raysP");
+        assertOnEveryEngine("IllegalArgumentException: ADD at location 8 requires 2 arguments, but stack is of size 1",
+                "rays2 raysF raysLove raysH raysF raysZ raysF raysP");
+    }
+
+    //Runs a program on every engine, and fails if any of them doesn't end up as expected.
+    private static void assertOnEveryEngine(String expected, String code){
+        for(RayscodeEvaluator.Engine engine : RayscodeEvaluator.Engine.values()){
+            assertEquals(engine + " ran " + code, expected, run(code, engine));
+        }
+    }
+
+    //Runs every program on every engine, and fails listing the programs whose results differ from TOKENS.
+    private static void assertSameOnEveryEngine(List<String> programs){
+        StringBuilder report = new StringBuilder();
+        int differences = 0;
+        for(String code : programs){
+            String expected = run(code, RayscodeEvaluator.Engine.TOKENS);
+            for(RayscodeEvaluator.Engine engine : RayscodeEvaluator.Engine.values()){
+                String actual = run(code, engine);
+                if(!expected.equals(actual)){
+                    differences++;
+                    if(differences <= MAX_REPORTED){
+                        report.append(code).append("\n  ").append(RayscodeEvaluator.Engine.TOKENS).append(": ").append(expected)
+                                .append("\n  ").append(engine).append(": ").append(actual).append("\n");
+                    }
+                }
+            }
+        }
+        assertEquals("Engines gave different results:\n" + report, 0, differences);
+    }
+
+    //Runs code to completion, giving it input if it asks for any, and describes how it ended.
+    private static String run(String code, RayscodeEvaluator.Engine engine){
+        try {
+            RayscodeProgram program = RayscodeCompiler.compile(lex(code));
+            RayscodeEvaluator evaluator = new RayscodeEvaluator(program, CONFIG);
+            evaluator.setEngine(engine);
+            RayscodeStack stack = evaluator.evaluate();
+            if(evaluator.isPaused()){
+                evaluator.setInputString("raysCode");
+                evaluator.setPaused(false);
+                stack = evaluator.evaluate();
+            }
+            return "stack=" + stack + " output=" + evaluator.getOutputString() + " paused=" + evaluator.isPaused() +
+                    " vars=" + evaluator.getVars();
+        } catch (IOException | RuntimeException | StackOverflowError ex){
+            return ex.getClass().getSimpleName() + ": " + ex.getMessage();
+        }
+    }
+
+    //Generates a random piece of code, with structures nested up to some depth.
+    //Structures are usually well formed, but are sometimes left unfinished, to check errors are reported the same way.
+    private static String generate(Random random, int depth){
+        StringBuilder code = new StringBuilder();
+        int length = random.nextInt(12) + 1;
+        for(int token = 0; token < length; token++){
+            int choice = random.nextInt(depth > 0 ? 10 : 7);
+            if(choice < 4){
+                code.append(SIMPLE[random.nextInt(SIMPLE.length)]);
+            } else if(choice < 6){
+                code.append(NAMES[random.nextInt(NAMES.length)]);
+                if(random.nextBoolean()){
+                    code.append(" raysLove");
+                } else if(random.nextInt(3) == 0){
+                    //A name and raysP has a shortcut, which has to step aside for a method bound to the name.
+                    code.append(" raysP");
+                }
+            } else if(choice == 6){
+                code.append(random.nextInt(20) == 0 ? "raysLick" : "raysE");
+            } else if(choice == 7){
+                code.append("raysShrug ").append(generate(random, depth - 1));
+                if(random.nextBoolean()){
+                    code.append(" raysT ").append(generate(random, depth - 1));
+                }
+                code.append(random.nextInt(20) == 0 ? "" : " raysFox");
+            } else if(choice == 8){
+                //Loops while the top of the stack is positive.
+                code.append("raysC ").append(generate(random, depth - 1)).append(" raysShrug raysT raysLurk raysFox");
+            } else {
+                String name = NAMES[random.nextInt(NAMES.length)];
+                //Sometimes the name is a variable too, which the method has to take the place of once it's declared.
+                boolean shadows = random.nextInt(4) == 0;
+                if(shadows){
+                    code.append(name).append(" raysLove ");
+                }
+                code.append("raysH ").append(name);
+                for(int param = random.nextInt(3); param > 0; param--){
+                    code.append(" raysShy");
+                }
+                code.append(" ").append(generate(random, 0));
+                code.append(random.nextInt(20) == 0 ? "" : " raysZ");
+                if(shadows){
+                    code.append(" ").append(name).append(" raysP");
+                }
+            }
+            code.append(" ");
+        }
+        return code.toString().trim();
+    }
+
+    private static String repeat(String code, int times){
+        return String.join(" ", Collections.nCopies(times, code));
+    }
+
+    //Lists the same value a number of times, as the stack lists its values.
+    private static String values(String value, int times){
+        return String.join(", ", Collections.nCopies(times, value));
+    }
+
+    //Builds raysCode which pushes a positive number, since only 2 and 3 are available as literals.
+    private static String literal(long number){
+        if(number == 1){
+            return "rays2 rays3 raysI";
+        } else if(number == 2){
+            return "rays2";
+        } else if(number == 3){
+            return "rays3";
+        } else if(number % 2 == 0){
+            return literal(number / 2) + " rays2 raysB";
+        } else {
+            return literal(number - 1) + " " + literal(1) + " raysP";
+        }
+    }
+
+    private static List<RayscodeFunctionMetadata> lex(String codeString) throws IOException {
+        RayscodeLexer lexer = new RayscodeLexer(new StringReader(codeString));
+        List<RayscodeFunctionMetadata> code = new ArrayList<>();
+        RayscodeFunctionMetadata token;
+        while((token = lexer.nextToken()) != null){
+            code.add(token);
+        }
+        return code;
+    }
+}